@@ -50,6 +50,15 @@ public class DigesterTask extends Task
         _storealias = alias;
     }
 
+    /**
+     * Sets the file in which resource stats and digests are recorded between runs. If set, only
+     * resources which have changed since the previous run are hashed.
+     */
+    public void setStatfile (File statfile)
+    {
+        _statfile = statfile;
+    }
+
     /**
      * Performs the actual work of the task.
      */
@@ -69,7 +78,7 @@ public class DigesterTask extends Task
         }
 
         try {
-            Digester.createDigests(_appdir, _storepath, _storepass, _storealias);
+            Digester.createDigests(_appdir, _storepath, _storepass, _storealias, _statfile);
         } catch (IOException ioe) {
             throw new BuildException("Error creating digest: " + ioe.getMessage(), ioe);
         } catch (GeneralSecurityException gse) {
@@ -88,4 +97,7 @@ public class DigesterTask extends Task
 
     /** The private key alias. */
     protected String _storealias;
+
+    /** The file in which resource stats are recorded for incremental digesting, if any. */
+    protected File _statfile;
 }
@@ -15,6 +15,7 @@ import java.util.List;
 import com.threerings.getdown.tools.Digester;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 public class DigesterIT {
 
@@ -26,10 +27,26 @@ public class DigesterIT {
         Path digest = appdir.resolve("digest.txt");
         List<String> digestLines = Files.readAllLines(digest, StandardCharsets.UTF_8);
         Files.delete(digest);
+        // the digester also writes a binary index of each digest file
+        Files.delete(appdir.resolve("digest.idx"));
 
         Path digest2 = appdir.resolve("digest2.txt");
         List<String> digest2Lines = Files.readAllLines(digest2, StandardCharsets.UTF_8);
         Files.delete(digest2);
+        Files.delete(appdir.resolve("digest2.idx"));
+
+        // newer digest versions are only created when listed in digest_versions
+        Path digest3 = appdir.resolve("digest3.txt");
+        assertFalse(Files.exists(digest3));
+        Digester.createDigests(new int[] { 3, 4 }, appdir.toFile(), null);
+        List<String> digest3Lines = Files.readAllLines(digest3, StandardCharsets.UTF_8);
+        Files.delete(digest3);
+        Files.delete(appdir.resolve("digest3.idx"));
+
+        Path digest4 = appdir.resolve("digest4.txt");
+        List<String> digest4Lines = Files.readAllLines(digest4, StandardCharsets.UTF_8);
+        Files.delete(digest4);
+        Files.delete(appdir.resolve("digest4.idx"));
 
         assertEquals(Arrays.asList(
             "getdown.txt = 9c9b2494929c99d44ae51034d59e1a1b",
@@ -50,5 +67,25 @@ public class DigesterIT {
             "script.sh = cca1c5c7628d9bf7533f655a9cfa6573d64afb8375f81960d1d832dc5135c988",
             "digest2.txt = 41eacdabda8909bdbbf61e4f980867f4003c16a12f6770e6fc619b6af100e05b"
         ), digest2Lines);
+
+        assertEquals(Arrays.asList(
+            "getdown.txt = 1efecfae2a189002a6658f17d162b1922c7bde978944949276dc038a0df2461f",
+            "testapp.jar = c656eca5b2315fcff9c45a467fd95e892ee91ecc2abad304333912b99dd5a106",
+            "funny%test dir/some=file.txt = f2ca1bb6c7e907d06dafe4687e579fce76b37e4e93b7605022da52e6ccc26fd2",
+            "crazyhashfile#txt = 6816889f922de38f145db215a28ad7c5e1badf7354b5cdab225a27486789fa3b",
+            "foo.jar = 5a7924a6544fb58dca7087ed0e9f11e49c48ce863ad56301752de36f8a6bfe70",
+            "script.sh = cca1c5c7628d9bf7533f655a9cfa6573d64afb8375f81960d1d832dc5135c988",
+            "digest3.txt = 225b2c72023a6f128d9e972f9798bb27b11580f258058a3c6769a663a5595f78"
+        ), digest3Lines);
+
+        assertEquals(Arrays.asList(
+            "getdown.txt = 016f065ba0c5dae1cf83562f1ae33ef8675fd592fff16a76438290d60db1b7cf",
+            "testapp.jar = 1f901300e1ca19ea765613f10bf6c6a83cc485e3f48a3d172496f58da0d9a944",
+            "funny%test dir/some=file.txt = dea2b412aa90f1b43a06ca5e8b8feafec45ae1357971322749480f4e1572eaa2",
+            "crazyhashfile#txt = 8a1d40b7b6e7c2f8e5cccfa80a778b9958b1bcf7e885619770d591814c637f2e",
+            "foo.jar = bfd4c2cca58977530df17596fa1f526066ec0bdd559fc73948ed705e8aba5a49",
+            "script.sh = 7bba40a5e184ace950ba3577a54f159a5e82ba6f88d2ac720b692fec90b451d4",
+            "digest4.txt = 5bc88afb493618dcc03b027c738d750605cc7582de8eb0e71816051b039c7437"
+        ), digest4Lines);
     }
 }
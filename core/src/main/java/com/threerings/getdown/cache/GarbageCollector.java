@@ -31,7 +31,8 @@ public class GarbageCollector
                     } else {
                         FileUtil.deleteHarder(lastAccessedFile);
                     }
-                } else if (shouldDelete(lastAccessedFile, retentionPeriodMillis)) {
+                } else if (shouldDelete(lastAccessedFile, retentionPeriodMillis) &&
+                           !isLinked(cachedFile, retentionPeriodMillis)) {
                     FileUtil.deleteHarder(lastAccessedFile);
                     FileUtil.deleteHarder(cachedFile);
                 }
@@ -65,7 +66,8 @@ public class GarbageCollector
                         File cachedFile = getCachedFile(file);
                         File lastAccessedFile = getLastAccessedFile(file);
                         if (!cachedFile.exists() || !lastAccessedFile.exists() ||
-                            shouldDelete(lastAccessedFile, retentionPeriodMillis)) {
+                            (shouldDelete(lastAccessedFile, retentionPeriodMillis) &&
+                             !isLinked(cachedFile, retentionPeriodMillis))) {
                             FileUtil.deleteDirHarder(dir);
                         }
                     }
@@ -82,6 +84,16 @@ public class GarbageCollector
         return System.currentTimeMillis() - lastAccessedFile.lastModified() > retentionMillis;
     }
 
+    /**
+     * Returns true if {@code cachedFile} is a hard link to a file that still exists outside the
+     * cache (see {@link ResourceCache#cacheFile}), in which case deleting it would free no space.
+     * Such files are kept unless we're cleaning up the cache forcefully.
+     */
+    private static boolean isLinked (File cachedFile, long retentionMillis)
+    {
+        return retentionMillis >= 0 && FileUtil.linkCount(cachedFile) > 1;
+    }
+
     private static File getLastAccessedFile (File file)
     {
         return isLastAccessedFile(file) ? file : new File(
@@ -7,9 +7,12 @@ package com.threerings.getdown.cache;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 
 import com.threerings.getdown.util.FileUtil;
 
+import static com.threerings.getdown.Log.log;
+
 /**
  * Maintains a cache of code resources. The cache allows multiple application instances of different
  * versions to open at the same time.
@@ -30,7 +33,12 @@ public class ResourceCache
     }
 
     /**
-     * Caches the given file under its {@code digest}.
+     * Caches the given file under its {@code digest}. The cached file is a hard link to (or a
+     * copy-on-write clone of) {@code fileToCache} where the file system allows, and a copy of it
+     * otherwise, see {@link FileUtil#linkOrCopy}. If the file was cached previously but has since
+     * been replaced (by a fresh download, say), the cached file is replaced in turn where that's
+     * cheap (via a hard link) or its size shows it to be damaged: a hard linked cached file shares
+     * any damage done to the file from which it was cached.
      * @param fileToCache file to cache.
      * @param cacheSubdir the subdirectory of the cache directory in which to store the cached
      * file. Usually either {@code digest} or a prefix of {@code digest}.
@@ -47,8 +55,10 @@ public class ResourceCache
                 cacheLocation, cachedFile.getName() + LAST_ACCESSED_FILE_SUFFIX);
 
         if (!cachedFile.exists()) {
-            createNewFile(cachedFile);
-            FileUtil.copy(fileToCache, cachedFile);
+            // link the file into the cache if we can, rather than copying it
+            FileUtil.linkOrCopy(fileToCache, cachedFile);
+        } else if (!Files.isSameFile(cachedFile.toPath(), fileToCache.toPath())) {
+            recache(fileToCache, cachedFile, cachedFile.length() != fileToCache.length());
         }
 
         if (lastAccessedFile.exists()) {
@@ -60,6 +70,28 @@ public class ResourceCache
         return cachedFile;
     }
 
+    /**
+     * Replaces {@code cachedFile} with a hard link to {@code fileToCache} if possible, or if
+     * {@code damaged}, with a copy. The new cached file is moved over the old one, so that any
+     * app still using the old one is unaffected.
+     */
+    private void recache (File fileToCache, File cachedFile, boolean damaged) throws IOException
+    {
+        File temp = new File(cachedFile.getPath() + "_new");
+        if (temp.exists() && !FileUtil.deleteHarder(temp)) {
+            throw new IOException("unable to delete: " + temp.getAbsolutePath());
+        }
+        if (damaged) {
+            FileUtil.linkOrCopy(fileToCache, temp);
+        } else if (!FileUtil.hardLink(fileToCache, temp)) {
+            return; // the cached file is an independent copy, which we keep
+        }
+        if (!FileUtil.renameTo(temp, cachedFile)) {
+            FileUtil.deleteHarder(temp);
+            log.warning("Unable to replace cached file", "file", cachedFile);
+        }
+    }
+
     private void createNewFile (File fileToCreate) throws IOException
     {
         if (!fileToCreate.exists() && !fileToCreate.createNewFile()) {
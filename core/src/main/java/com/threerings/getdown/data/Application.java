@@ -7,6 +7,7 @@ package com.threerings.getdown.data;
 
 import java.io.*;
 import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
@@ -24,6 +25,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.threerings.getdown.net.Connector;
+import com.threerings.getdown.net.Downloader;
+import com.threerings.getdown.net.Mirrors;
 import com.threerings.getdown.util.*;
 // avoid ambiguity with java.util.Base64 which we can't use as it's 1.8+
 import com.threerings.getdown.util.Base64;
@@ -43,6 +46,20 @@ public class Application
     /** The name of our target version file. */
     public static final String VERSION_FILE = "version.txt";
 
+    /** The name of the file in which we cache computed resource digests. */
+    public static final String DIGEST_CACHE_FILE = "digest-cache.dat";
+
+    /** The name of the file in which we record which resources have been validated. */
+    public static final String VALIDATION_LEDGER_FILE = "validated.dat";
+
+    /** The name of the file in which we report the outcome of verifying resources after launch
+     * (see {@link #verifyAfterLaunch}). */
+    public static final String VERIFY_STATUS_FILE = "verify-status.txt";
+
+    /** The digest protocol versions for which digest files are created (and the highest of which
+     * clients validate against) if {@code digest_versions} is not specified. */
+    protected static final int[] DEFAULT_DIGEST_VERSIONS = { 1, 2 };
+
     /** System properties that are prefixed with this string will be passed through to our
      * application (minus this prefix). */
     public static final String PROP_PASSTHROUGH_PREFIX = "app.";
@@ -273,7 +290,7 @@ public class Application
     /** A helper that is used to do HTTP downloads. This must be configured prior to using the
       * application instance. Yes this is a public mutable field, no I'm not going to create a
       * getter and setter just to pretend like that's not the case. */
-    public Connector conn = Connector.DEFAULT;
+    public Connector conn = new Connector();
 
     /**
      * Creates an application instance which records the location of the {@code getdown.txt}
@@ -317,6 +334,203 @@ public class Application
         return _maxConcDownloads;
     }
 
+    /**
+     * Returns the maximum rate (in bytes per second) at which resources should be downloaded, or
+     * {@code 0} if downloads should not be rate limited.
+     * @param background whether Getdown is updating in the background (silently, or after a start
+     * delay) rather than while the user waits.
+     */
+    public long downloadRateLimit (boolean background) {
+        long override = background ? SysProps.backgroundDownloadRateLimit() :
+            SysProps.downloadRateLimit();
+        if (override >= 0) {
+            return override;
+        }
+        return background ? _backgroundDownloadRate : _downloadRate;
+    }
+
+    /**
+     * Returns whether the number of concurrent downloads should be adapted to the connection, with
+     * {@link #maxConcurrentDownloads} serving as a ceiling.
+     */
+    public boolean adaptiveDownloads () {
+        return _adaptiveDownloads;
+    }
+
+    /**
+     * Returns whether interrupted resource downloads should be resumed (via HTTP range requests)
+     * rather than restarted from scratch.
+     */
+    public boolean resumeDownloads () {
+        return _resumeDownloads;
+    }
+
+    /**
+     * Returns the size (in bytes) at or above which a resource is downloaded in multiple parallel
+     * segments, or {@code 0} if segmented downloading is disabled.
+     */
+    public long downloadSegmentThreshold () {
+        return _downloadSegmentThreshold;
+    }
+
+    /**
+     * Returns the number of segments into which large resources are split when downloading.
+     */
+    public int downloadSegments () {
+        return _downloadSegments;
+    }
+
+    /**
+     * Returns the versions of the digest protocol for which digest files are created, in
+     * ascending order.
+     */
+    public int[] digestVersions () {
+        return _digestVersions;
+    }
+
+    /**
+     * Returns the version of the digest protocol against which resources are validated: the
+     * highest of the {@link #digestVersions}.
+     */
+    public int digestVersion () {
+        return _digestVersions[_digestVersions.length-1];
+    }
+
+    /**
+     * Returns the lowest version of the digest protocol against which resources may be validated,
+     * should the appbase lack the digest file of the {@link #digestVersion}. By default this is
+     * the {@link #digestVersion} itself (no older digest file is accepted), and it is never
+     * version 1 (whose digests are MD5) unless that is the only version listed.
+     */
+    public int minDigestVersion () {
+        return _minDigestVersion;
+    }
+
+    /**
+     * Returns the version of the digest protocol of the digest file in the app directory against
+     * which resources are validated: of the {@link #digestVersions} no lower than the {@link
+     * #minDigestVersion}, that whose digest file was most recently installed (preferring the
+     * highest), or {@link #digestVersion} if none of them are present. An appbase digested by an
+     * older {@code Digester} may lack the digest file of the highest listed version, in which case
+     * an older one is installed, but a newer digest file already in the app directory is kept.
+     */
+    public int presentDigestVersion () {
+        int present = digestVersion();
+        long installed = -1L;
+        for (int ii = _digestVersions.length-1; ii >= 0; ii--) {
+            if (_digestVersions[ii] < _minDigestVersion) break;
+            File file = getLocalPath(Digest.digestFile(_digestVersions[ii]));
+            if (file.exists() && file.lastModified() > installed) {
+                present = _digestVersions[ii];
+                installed = file.lastModified();
+            }
+        }
+        return present;
+    }
+
+    /**
+     * Returns whether {@code #} only starts a comment in config files (and the digest file) when
+     * it is the first non-whitespace character on a line.
+     */
+    public boolean strictComments () {
+        return _strictComments;
+    }
+
+    /**
+     * Returns the minimum size of a resource for which the digester creates a
+     * {@link ChunkManifest}, or {@code 0} if no chunk manifests are to be created.
+     */
+    public long chunkManifestThreshold () {
+        return _chunkManifestThreshold;
+    }
+
+    /**
+     * Returns the size of the chunks described by the chunk manifests created by the digester.
+     */
+    public long chunkManifestChunkSize () {
+        return _chunkManifestChunkSize;
+    }
+
+    /**
+     * Returns the damaged portions of {@code rsrc}'s local copy, as determined when it failed
+     * verification, if the resource can be repaired by downloading only those portions. Returns
+     * null if the whole resource must be downloaded.
+     */
+    public Downloader.Repair repairFor (Resource rsrc) {
+        return _repairs.remove(rsrc);
+    }
+
+    /**
+     * Returns whether resources should always be hashed when verified, rather than trusting the
+     * digests cached for files that are unchanged since they were last hashed.
+     */
+    public boolean paranoidVerify () {
+        return _paranoidVerify || SysProps.paranoidVerify();
+    }
+
+    /**
+     * Returns whether the application may be launched once its code resources are verified, with
+     * the hashing of (previously validated) data resources deferred until after launch.
+     */
+    public boolean verifyAfterLaunch () {
+        return _verifyAfterLaunch;
+    }
+
+    /**
+     * Returns whether archives are unpacked incrementally, rewriting only the entries that changed
+     * since they were last unpacked.
+     */
+    public boolean incrementalUnpack () {
+        return _incrementalUnpack;
+    }
+
+    /**
+     * Returns whether archives that are to be unpacked are extracted (into a staging directory) as
+     * they're downloaded, rather than once they've been downloaded and verified.
+     */
+    public boolean streamingUnpack () {
+        return _streamingUnpack;
+    }
+
+    /**
+     * Returns the cache of digests computed for this application's resources.
+     */
+    public synchronized DigestCache getDigestCache () {
+        if (_digestCache == null) {
+            _digestCache = new DigestCache(getLocalPath(DIGEST_CACHE_FILE));
+        }
+        return _digestCache;
+    }
+
+    /**
+     * Returns the ledger which records which of this application's resources have been validated.
+     */
+    public synchronized ValidationLedger getValidationLedger () {
+        if (_ledger == null) {
+            _ledger = new ValidationLedger(getLocalPath(VALIDATION_LEDGER_FILE));
+        }
+        return _ledger;
+    }
+
+    /**
+     * Returns whether resources should be hashed as they are downloaded, allowing those that match
+     * their digest to be installed without being read back in and validated.
+     */
+    public boolean verifyDuringDownload () {
+        return _verifyDuringDownload;
+    }
+
+    /**
+     * Notes that {@code rsrc} was hashed while it was downloaded and its {@code _new} file matched
+     * the digest. As long as said file is unchanged, the next call to {@link #verifyResources} will
+     * queue it for installation without validating it again.
+     */
+    public void noteVerifiedDownload (Resource rsrc)
+    {
+        File localNew = rsrc.getLocalNew();
+        _verifiedDownloads.put(rsrc, new long[] { localNew.length(), localNew.lastModified() });
+    }
+
     /**
      * Returns a resource that refers to the application configuration file itself.
      */
@@ -345,6 +559,20 @@ public class Application
         return _resources;
     }
 
+    /**
+     * Returns the priority with which {@code rsrc} should be downloaded (lower values first): code
+     * and {@code PRELOAD} resources, which are needed to launch the application, have priority
+     * {@code 0}; other resources have priority {@code 1}; and resources in aux groups have priority
+     * {@code 2}.
+     */
+    public int downloadPriority (Resource rsrc)
+    {
+        if (rsrc.shouldPredownload() || _codes.contains(rsrc)) {
+            return 0;
+        }
+        return _resources.contains(rsrc) ? 1 : 2;
+    }
+
     /**
      * Returns a list of strings (usually file paths relative to the app root dir) to add to the
      * classpath.
@@ -510,7 +738,8 @@ public class Application
         try {
             URL remote = new URL(createVAppBase(_targetVersion), encodePath(_javaLocation));
             return new Resource(vmfile, remote, getLocalPath(vmfile),
-                                EnumSet.of(Resource.Attr.UNPACK, Resource.Attr.CLEAN));
+                                EnumSet.of(Resource.Attr.UNPACK, Resource.Attr.CLEAN),
+                                getValidationLedger());
         } catch (Exception e) {
             log.warning("Failed to create VM resource", "vmfile", vmfile, "appbase", _appbase,
                 "tvers", _targetVersion, "javaloc", _javaLocation, "error", e);
@@ -629,6 +858,36 @@ public class Application
             _appbase += "/";
         }
 
+        // read our mirrors, if we have any (and aren't overriding the appbase); the appbase is our
+        // first mirror, unless we've selected a different one in which case it goes first
+        List<String> appbases = new ArrayList<>();
+        appbases.add(_appbase);
+        String[] mirrors = config.getMultiValue("appbase_mirror");
+        if (mirrors != null && SysProps.appbaseOverride() == null &&
+            SysProps.appbaseDomain() == null) {
+            for (String mirror : mirrors) {
+                mirror = resolveEnvVars(mirror);
+                if (!mirror.endsWith("/")) {
+                    mirror += "/";
+                }
+                try {
+                    createVAppBase(mirror, _version);
+                } catch (MalformedURLException mue) {
+                    String err = MessageUtil.tcompose("m.invalid_appbase", mirror);
+                    throw new IOException(err, mue);
+                }
+                if (!appbases.contains(mirror)) {
+                    appbases.add(mirror);
+                }
+            }
+        }
+        if (_selectedMirror != null && appbases.remove(_selectedMirror)) {
+            appbases.add(0, _selectedMirror);
+            _appbase = _selectedMirror;
+        }
+        _mirrors = new Mirrors(appbases);
+        conn.setMirrors(_mirrors);
+
         // if we are a versioned deployment, create a versioned appbase
         try {
             _vappbase = createVAppBase(_version);
@@ -660,6 +919,25 @@ public class Application
             "revalidate_policy", RevalidatePolicy.class, RevalidatePolicy.AFTER_UPDATE);
         int tpSize = SysProps.threadPoolSize();
         _maxConcDownloads = Math.max(1, config.getInt("max_concurrent_downloads", tpSize));
+        _adaptiveDownloads = config.getBoolean("adaptive_downloads");
+        _downloadRate = Math.max(0L, config.getLong("max_download_rate", 0L));
+        _backgroundDownloadRate = Math.max(
+            0L, config.getLong("max_background_download_rate", _downloadRate));
+        _resumeDownloads = config.getBoolean("resume_downloads");
+        _downloadSegmentThreshold = Math.max(0L, config.getLong("download_segment_threshold", 0L));
+        _downloadSegments = Math.max(1, config.getInt("download_segments", 4));
+        _verifyDuringDownload = config.getBoolean("verify_during_download");
+        _paranoidVerify = config.getBoolean("paranoid_verify");
+        _verifyAfterLaunch = config.getBoolean("verify_after_launch");
+        _incrementalUnpack = config.getBoolean("incremental_unpack");
+        _streamingUnpack = config.getBoolean("streaming_unpack");
+        _digestVersions = parseDigestVersions(config.getList("digest_versions"));
+        _minDigestVersion = Math.min(
+            digestVersion(), Math.max(2, config.getInt("min_digest_version", digestVersion())));
+        _chunkManifestThreshold = Math.max(0L, config.getLong("chunk_manifest_threshold", 0L));
+        _chunkManifestChunkSize = Math.max(
+            1L, config.getLong("chunk_manifest_chunk_size", DEFAULT_CHUNK_SIZE));
+
         _verifyTimeout = config.getInt("verify_timeout", 60);
 
         // whether to cache code resources and launch from cache
@@ -1194,6 +1472,85 @@ public class Application
         }
     }
 
+    /**
+     * Probes each of our appbase mirrors (concurrently) and selects the healthy mirror with the
+     * lowest latency. Once a healthy mirror has been found, subsequent calls do nothing.
+     *
+     * @return true if a mirror other than our current appbase was selected, in which case the
+     * caller should reinitialize this application (via {@link #init}) so that our resources are
+     * downloaded from the selected mirror.
+     */
+    public boolean selectMirror ()
+    {
+        if (_mirrors.size() < 2 || _mirrorProbed) {
+            return false;
+        }
+
+        List<String> appbases = _mirrors.appbases();
+        ExecutorService exec = Executors.newFixedThreadPool(appbases.size());
+        List<Future<Long>> probes = new ArrayList<>();
+        for (final String appbase : appbases) {
+            probes.add(exec.submit(new Callable<Long>() {
+                public Long call () {
+                    return probeMirror(appbase);
+                }
+            }));
+        }
+        exec.shutdown();
+
+        String best = null;
+        long bestLatency = Long.MAX_VALUE;
+        for (int ii = 0; ii < probes.size(); ii++) {
+            long latency;
+            try {
+                latency = probes.get(ii).get();
+            } catch (InterruptedException | ExecutionException e) {
+                latency = -1L;
+            }
+            log.info("Probed mirror", "appbase", appbases.get(ii), "latency", latency);
+            if (latency >= 0 && latency < bestLatency) {
+                best = appbases.get(ii);
+                bestLatency = latency;
+            }
+        }
+
+        if (best == null) {
+            log.warning("No mirrors responded to probe, sticking with appbase", "appbase", _appbase);
+            return false;
+        }
+        _mirrorProbed = true;
+        if (best.equals(_appbase)) {
+            return false;
+        }
+        log.info("Selected mirror", "appbase", best, "latency", bestLatency);
+        _selectedMirror = best;
+        return true;
+    }
+
+    /**
+     * Requests our config file from {@code appbase}, returning the number of milliseconds it took
+     * to respond successfully, or {@code -1} if it failed to respond successfully.
+     */
+    protected long probeMirror (String appbase)
+    {
+        long start = System.currentTimeMillis();
+        try {
+            URL url = new URL(createVAppBase(appbase, _version), CONFIG_FILE);
+            URLConnection uconn = conn.open(url, MIRROR_PROBE_TIMEOUT, MIRROR_PROBE_TIMEOUT);
+            if (!(uconn instanceof HttpURLConnection)) {
+                return 0L;
+            }
+            HttpURLConnection hconn = (HttpURLConnection)uconn;
+            hconn.setRequestMethod("HEAD");
+            int code = hconn.getResponseCode();
+            conn.release(hconn);
+            return (code == HttpURLConnection.HTTP_OK) ? System.currentTimeMillis() - start : -1L;
+        } catch (IOException ioe) {
+            log.info("Mirror probe failed", "appbase", appbase, "error", ioe);
+            return -1L;
+        }
+    }
+
     /**
      * Loads the {@code digest.txt} file and verifies the contents of both that file and the
      * {@code getdown.text} file. Then it loads the {@code version.txt} and decides
@@ -1215,7 +1572,7 @@ public class Application
 
         // this will read in the contents of the digest file and validate itself
         try {
-            _digest = new Digest(getAppDir(), _strictComments);
+            _digest = new Digest(getAppDir(), presentDigestVersion(), _strictComments);
         } catch (IOException ioe) {
             log.info("Failed to load digest: " + ioe.getMessage() + ". Attempting recovery...");
         }
@@ -1229,7 +1586,7 @@ public class Application
             try {
                 status.updateStatus("m.checking");
                 downloadDigestFiles();
-                _digest = new Digest(getAppDir(), _strictComments);
+                _digest = new Digest(getAppDir(), presentDigestVersion(), _strictComments);
                 if (!olddig.equals(_digest.getMetaDigest())) {
                     log.info("Unversioned digest changed. Revalidating...");
                     status.updateStatus("m.validating");
@@ -1247,7 +1604,7 @@ public class Application
         if (_digest == null) {
             status.updateStatus("m.updating_metadata");
             downloadDigestFiles();
-            _digest = new Digest(getAppDir(), _strictComments);
+            _digest = new Digest(getAppDir(), presentDigestVersion(), _strictComments);
         }
 
         // now verify the contents of our main config file
@@ -1258,12 +1615,17 @@ public class Application
             // caller because there's nothing we can do to automatically recover
             downloadConfigFile();
             downloadDigestFiles();
-            _digest = new Digest(getAppDir(), _strictComments);
+            _digest = new Digest(getAppDir(), presentDigestVersion(), _strictComments);
             // revalidate everything if we end up downloading new metadata
             clearValidationMarkers();
             // if the new copy validates, reinitialize ourselves; otherwise report baffling hoseage
             if (_digest.validateResource(crsrc, null)) {
                 init(true);
+                // the new config may have us validate against a different digest version
+                if (_digest.getVersion() != digestVersion()) {
+                    downloadDigestFiles();
+                    _digest = new Digest(getAppDir(), presentDigestVersion(), _strictComments);
+                }
             } else {
                 log.warning(CONFIG_FILE + " failed to validate even after redownloading. " +
                             "Blindly forging onward.");
@@ -1357,20 +1719,42 @@ public class Application
             }
         }, sizes);
 
+        // unless we're being paranoid, consult our digest cache before hashing resources
+        _verifyCache = paranoidVerify() ? null : getDigestCache();
+        getValidationLedger().setDigestVersion(_digest.getVersion());
+
+        // if we're to verify data resources after launch, note which resources are eligible and
+        // which were found to be damaged the last time they were verified after launch (if that
+        // verification didn't complete, we can't trust any resource and defer none of them)
+        _deferred.clear();
+        _deferrable = _verifyAfterLaunch ? new HashSet<>(getActiveResources()) :
+            Collections.<Resource>emptySet();
+        _damagedPaths = _verifyAfterLaunch ? readVerifyStatus() : Collections.<String>emptySet();
+
         final int[] fAlreadyValid = alreadyValid;
         final Set<Resource> toInstallAsync = new ConcurrentSkipListSet<>(toInstall);
         final Set<Resource> toDownloadAsync = new ConcurrentSkipListSet<>();
         final Set<Resource> unpackedAsync = new ConcurrentSkipListSet<>();
-
-        for (int ii = 0; ii < sizes.length; ii++) {
-            final Resource rsrc = rsrcs.get(ii);
-            final int index = ii;
+        final Set<Resource> toUnpackAsync = new ConcurrentSkipListSet<>();
+
+        // the pool's threads take resources from its (FIFO) queue as they free up, so we submit
+        // the largest resources first; this way a big resource doesn't end up being hashed on its
+        // own after all the others are done (longest processing time first scheduling)
+        final long[] fsizes = sizes;
+        final long[] durations = new long[sizes.length];
+        for (final int index : largestFirst(sizes)) {
+            final Resource rsrc = rsrcs.get(index);
             exec.execute(new Runnable() {
                 public void run () {
-                    verifyResource(rsrc, pagg.startElement(index), fAlreadyValid,
-                                   unpackedAsync, toInstallAsync, toDownloadAsync);
+                    long vstart = System.nanoTime();
+                    verifyResource(rsrc, pagg.startElement(index), fAlreadyValid, unpackedAsync,
+                                   toUnpackAsync, toInstallAsync, toDownloadAsync);
+                    final long duration = (System.nanoTime() - vstart) / 1000000L;
+                    log.debug("Verified resource", "rsrc", rsrc, "size", fsizes[index],
+                              "duration", duration + "ms");
                     actions.add(new Runnable() {
                         public void run () {
+                            durations[index] = duration;
                             completed[0] += 1;
                         }
                     });
@@ -1390,17 +1774,91 @@ public class Application
 
         exec.shutdown();
 
+        // unpack the valid archives that need it (in the order in which they're listed); any that
+        // fail to unpack are downloaded anew
+        List<Resource> toUnpack = new ArrayList<>();
+        for (Resource rsrc : rsrcs) {
+            if (toUnpackAsync.contains(rsrc)) {
+                toUnpack.add(rsrc);
+            }
+        }
+        long[] usizes = new long[toUnpack.size()];
+        for (int ii = 0; ii < usizes.length; ii++) {
+            usizes[ii] = toUnpack.get(ii).getLocal().length();
+        }
+        List<Resource> failed = unpackInParallel(toUnpack, usizes, new ProgressObserver() {
+            public void progress (int percent) {} // verification progress is already complete
+        });
+        for (Resource rsrc : toUnpack) {
+            if (failed.contains(rsrc)) {
+                noteDamage(rsrc);
+                toDownloadAsync.add(rsrc);
+                continue;
+            }
+            unpackedAsync.add(rsrc);
+            try {
+                rsrc.markAsValid();
+            } catch (IOException ioe) {
+                log.warning("Failed to mark resource as valid", "rsrc", rsrc, "error", ioe);
+            }
+        }
+
+        if (_verifyCache != null) {
+            _verifyCache.save();
+        }
+        getValidationLedger().save();
+
         toInstall.addAll(toInstallAsync);
         toDownload.addAll(toDownloadAsync);
         unpacked.addAll(unpackedAsync);
 
         long complete = System.currentTimeMillis();
         log.info("Verified resources", "count", rsrcs.size(), "alreadyValid", alreadyValid[0],
-                 "size", (totalSize/1024) + "k", "duration", (complete-start) + "ms");
+                 "deferred", _deferred.size(), "size", (totalSize/1024) + "k",
+                 "duration", (complete-start) + "ms");
+        logSlowestVerifies(rsrcs, sizes, durations);
+    }
+
+    /**
+     * Returns the indices of {@code values} ordered from largest value to smallest.
+     */
+    protected static Integer[] largestFirst (final long[] values)
+    {
+        Integer[] order = new Integer[values.length];
+        for (int ii = 0; ii < order.length; ii++) {
+            order[ii] = ii;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare (Integer a, Integer b) {
+                return Long.compare(values[b], values[a]);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Logs the resources that took the longest to verify, which are the ones that determine how
+     * long verification takes.
+     *
+     * @return the resources that were logged, slowest first.
+     */
+    protected List<Resource> logSlowestVerifies (
+        List<Resource> rsrcs, long[] sizes, long[] durations)
+    {
+        List<Resource> slowest = new ArrayList<>();
+        for (int idx : largestFirst(durations)) {
+            if (slowest.size() >= SLOWEST_VERIFIES_LOGGED || durations[idx] < SLOW_VERIFY_MILLIS) {
+                break;
+            }
+            log.info("Slow resource verification", "rsrc", rsrcs.get(idx), "size", sizes[idx],
+                     "duration", durations[idx] + "ms");
+            slowest.add(rsrcs.get(idx));
+        }
+        return slowest;
     }
 
     private void verifyResource (Resource rsrc, ProgressObserver obs, int[] alreadyValid,
-                                 Set<Resource> unpacked,
+                                 Set<Resource> unpacked, Set<Resource> toUnpack,
                                  Set<Resource> toInstall, Set<Resource> toDownload) {
         if (_revalidatePolicy != RevalidatePolicy.ALWAYS && rsrc.isMarkedValid()) {
             if (alreadyValid != null) {
@@ -1410,13 +1868,35 @@ public class Application
             return;
         }
 
+        // if we verified this resource's _new file as we downloaded it, and it hasn't changed
+        // since, there's no need to validate it again
+        long[] stat = _verifiedDownloads.remove(rsrc);
+        File localNew = rsrc.getLocalNew();
+        if (stat != null && localNew.length() == stat[0] && localNew.lastModified() == stat[1]) {
+            toInstall.add(rsrc);
+            obs.progress(100);
+            return;
+        }
+
+        // if we can trust this resource until it's verified after launch, leave it until then
+        if (canDefer(rsrc)) {
+            _deferred.add(rsrc);
+            obs.progress(100);
+            return;
+        }
+
         try {
-            if (_digest.validateResource(rsrc, obs)) {
+            if (_digest.validateResource(rsrc, obs, _verifyCache)) {
                 // if the resource has a _new file, add it to to-install list
                 if (rsrc.getLocalNew().exists()) {
                     toInstall.add(rsrc);
                     return;
                 }
+                // archives are unpacked once verification is done, on the unpacking pool
+                if (rsrc.shouldUnpack()) {
+                    toUnpack.add(rsrc);
+                    return;
+                }
                 rsrc.applyAttrs();
                 unpacked.add(rsrc);
                 rsrc.markAsValid();
@@ -1430,15 +1910,204 @@ public class Application
         } finally {
             obs.progress(100);
         }
+        noteDamage(rsrc);
         toDownload.add(rsrc);
     }
 
+    /**
+     * Returns true if the verification of {@code rsrc} can be deferred until after launch. We
+     * defer only data resources which we have good reason to believe are valid: those previously
+     * validated (which our revalidation policy nonetheless requires we check again), and those
+     * whose file is unchanged since it was last hashed and found to match.
+     */
+    protected boolean canDefer (Resource rsrc)
+    {
+        // resources to be unpacked or installed must be verified before we can use them
+        if (_damagedPaths == null || !_deferrable.contains(rsrc) || rsrc.shouldUnpack() ||
+            rsrc.getLocalNew().exists() || _damagedPaths.contains(rsrc.getPath())) {
+            return false;
+        }
+        String ehash = _digest.getDigest(rsrc);
+        DigestCache.Stat stat = DigestCache.stat(rsrc.getDigestFile());
+        boolean cached = ehash != null && stat != null &&
+            ehash.equals(getDigestCache().get(_digest.getVersion(), rsrc.getPath(), stat));
+        // if we're allowed to trust the digest cache, validating via it is as cheap as deferring
+        if (cached && _verifyCache != null) {
+            return false;
+        }
+        return cached || rsrc.isMarkedValid();
+    }
+
+    /**
+     * Returns true if the verification of some resources was deferred until after launch, in
+     * which case {@link #verifyDeferredResources} should be called once the app is launched.
+     */
+    public boolean hasDeferredResources ()
+    {
+        return !_deferred.isEmpty();
+    }
+
+    /**
+     * Hashes the resources whose verification was deferred until after launch. Resources which
+     * prove valid are marked as such. The paths of any that are damaged are reported via {@link
+     * #VERIFY_STATUS_FILE}, both so that the application can learn of the damage and so that we
+     * verify (and repair) those resources before the next launch. This is meant to be called on a
+     * low priority thread once the application has been launched.
+     */
+    public void verifyDeferredResources ()
+    {
+        List<Resource> rsrcs = new ArrayList<>(_deferred);
+        _deferred.clear();
+        if (rsrcs.isEmpty()) {
+            writeVerifyStatus(STATUS_OK, Collections.<String>emptyList());
+            return;
+        }
+        writeVerifyStatus(STATUS_VERIFYING, Collections.<String>emptyList());
+
+        long start = System.currentTimeMillis();
+        int version = _digest.getVersion();
+        DigestCache cache = getDigestCache();
+        List<String> damaged = new ArrayList<>();
+        for (Resource rsrc : rsrcs) {
+            try {
+                // we always hash deferred resources, the point is to check what we trusted
+                DigestCache.Stat stat = DigestCache.stat(rsrc.getDigestFile());
+                String chash = rsrc.computeDigest(version, Digest.getMessageDigest(version), null);
+                cache.put(version, rsrc.getPath(), stat, chash);
+                if (chash.equals(_digest.getDigest(rsrc))) {
+                    rsrc.markAsValid();
+                    continue;
+                }
+                log.warning("Resource failed verification after launch", "rsrc", rsrc,
+                            "computed", chash, "expected", _digest.getDigest(rsrc));
+            } catch (Exception e) {
+                log.warning("Failure verifying resource after launch", "rsrc", rsrc, "error", e);
+            }
+            rsrc.clearMarker();
+            damaged.add(rsrc.getPath());
+        }
+        cache.save();
+        getValidationLedger().save();
+        writeVerifyStatus(damaged.isEmpty() ? STATUS_OK : STATUS_DAMAGED, damaged);
+
+        log.info("Verified resources after launch", "count", rsrcs.size(),
+                 "damaged", damaged.size(),
+                 "duration", (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Reads the paths of the resources reported as damaged by {@link #VERIFY_STATUS_FILE}.
+     *
+     * @return the damaged paths, or null if the file is missing, unreadable or reports that
+     * verification never completed (say because the verifying thread was killed when the app
+     * exited), in which case every resource must be verified before launch.
+     */
+    protected Set<String> readVerifyStatus ()
+    {
+        Set<String> damaged = new HashSet<>();
+        String status = null;
+        File file = getLocalPath(VERIFY_STATUS_FILE);
+        if (!file.exists()) return null;
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(DAMAGED_PREFIX)) {
+                    damaged.add(line.substring(DAMAGED_PREFIX.length()));
+                } else if (line.startsWith(STATUS_PREFIX)) {
+                    status = line.substring(STATUS_PREFIX.length());
+                }
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to read verify status", "file", file, "error", ioe);
+            return null;
+        }
+        if (STATUS_OK.equals(status) || STATUS_DAMAGED.equals(status)) {
+            return damaged;
+        }
+        log.info("Resources were not verified after the last launch, verifying them now",
+                 "status", status);
+        return null;
+    }
+
+    /**
+     * Reports the outcome of verifying resources after launch via {@link #VERIFY_STATUS_FILE}.
+     * The file contains a {@code status = } line (one of {@code verifying}, {@code ok} or {@code
+     * damaged}) and a {@code damaged = } line for each damaged resource. The file is written in
+     * full to a temporary file (and synced) before replacing the old one, so that it is never seen
+     * partially written even if we are killed (as the daemon verifier thread may be).
+     */
+    protected void writeVerifyStatus (String status, List<String> damaged)
+    {
+        File file = getLocalPath(VERIFY_STATUS_FILE);
+        File temp = getLocalPath(VERIFY_STATUS_FILE + "_new");
+        try (FileOutputStream fout = new FileOutputStream(temp)) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(fout, UTF_8));
+            out.println(STATUS_PREFIX + status);
+            for (String path : damaged) {
+                out.println(DAMAGED_PREFIX + path);
+            }
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("Failed to write " + temp);
+            }
+            fout.getFD().sync();
+        } catch (IOException ioe) {
+            log.warning("Failed to write verify status", "file", temp, "error", ioe);
+            return;
+        }
+        // replace the old status atomically so that the app never sees a partial status
+        if (!FileUtil.renameTo(temp, file)) {
+            log.warning("Failed to replace verify status", "file", file);
+        }
+    }
+
+    /**
+     * Called when {@code rsrc} fails verification. If a chunk manifest is available for it, we
+     * determine which portions of its local copy are damaged so that only they need be downloaded.
+     */
+    protected void noteDamage (Resource rsrc)
+    {
+        String root = _digest.getChunkManifestRoot(rsrc);
+        File file = rsrc.getDigestFile();
+        // we only try to repair a resource once, if that fails we download the whole thing
+        if (root == null || !file.exists() || !_repairAttempted.add(rsrc)) {
+            return;
+        }
+
+        int version = _digest.getVersion();
+        try {
+            URL url = new URL(rsrc.getRemote().toString() +
+                              ChunkManifest.manifestPath("", version));
+            ChunkManifest chunks = ChunkManifest.parse(conn.fetch(url));
+            if (!root.equals(chunks.root(version))) {
+                log.warning("Chunk manifest failed validation", "rsrc", rsrc, "url", url);
+                return;
+            }
+            List<long[]> ranges = chunks.damagedRanges(file, version);
+            Downloader.Repair repair = new Downloader.Repair(chunks.size(), ranges);
+            long damaged = repair.bytes();
+            log.info("Found damaged chunks", "rsrc", rsrc, "ranges", ranges.size(),
+                     "bytes", damaged, "size", chunks.size());
+            // if most of the resource is damaged (or the damage is strewn all over it), we're
+            // better off just downloading the whole thing
+            if (!ranges.isEmpty() && damaged <= chunks.size() * MAX_REPAIR_FRACTION &&
+                ranges.size() <= MAX_REPAIR_RANGES) {
+                _repairs.put(rsrc, repair);
+            }
+        } catch (Exception e) {
+            log.info("Unable to determine damaged chunks", "rsrc", rsrc, "error", e);
+        }
+    }
+
     /**
      * Unpacks the resources that require it (we know that they're valid).
      *
      * @param unpacked a set of resources to skip because they're already unpacked.
      */
-    public void unpackResources (ProgressObserver obs, Set<Resource> unpacked) {
+    public void unpackResources (ProgressObserver obs, Set<Resource> unpacked)
+        throws InterruptedException
+    {
         List<Resource> rsrcs = getActiveResources();
 
         // remove resources that we don't want to unpack
@@ -1455,17 +2124,72 @@ public class Application
             sizes[ii] = rsrcs.get(ii).getLocal().length();
         }
 
-        ProgressAggregator pagg = new ProgressAggregator(obs, sizes);
-        for (int ii = 0; ii < sizes.length; ii++) {
-            Resource rsrc = rsrcs.get(ii);
-            ProgressObserver pobs = pagg.startElement(ii);
-            try {
-                rsrc.unpack();
-            } catch (IOException ioe) {
-                log.warning("Failure unpacking resource", "rsrc", rsrc, ioe);
+        unpackInParallel(rsrcs, sizes, obs);
+    }
+
+    /**
+     * Unpacks {@code rsrcs} (and applies their other attributes) on a pool of threads separate
+     * from the one which verifies resources. Archives that unpack into the same directory (or into
+     * directories nested one within the other) are unpacked one after another, in the order in
+     * which they're listed, so that {@code clean} archives behave as they would were everything
+     * unpacked sequentially. Other archives are unpacked in parallel.
+     *
+     * @param sizes the sizes of the resources, by which progress is apportioned.
+     * @return the resources that failed to unpack.
+     */
+    protected List<Resource> unpackInParallel (List<Resource> rsrcs, long[] sizes,
+                                               ProgressObserver obs)
+        throws InterruptedException
+    {
+        final List<Resource> failed = Collections.synchronizedList(new ArrayList<Resource>());
+        if (rsrcs.isEmpty()) return failed;
+
+        // group the archives by the outermost directory into which they (or archives that unpack
+        // into a directory containing theirs) unpack
+        Map<File, List<Integer>> groups = new LinkedHashMap<>();
+        for (int ii = 0; ii < rsrcs.size(); ii++) {
+            File own = rsrcs.get(ii).getUnpacked(), target = own;
+            for (Resource other : rsrcs) {
+                File dir = other.getUnpacked();
+                if (FileUtil.isAncestor(dir, own) &&
+                    dir.getPath().length() < target.getPath().length()) {
+                    target = dir;
+                }
             }
-            pobs.progress(100);
+            List<Integer> group = groups.get(target);
+            if (group == null) {
+                groups.put(target, group = new ArrayList<>());
+            }
+            group.add(ii);
         }
+
+        long start = System.currentTimeMillis();
+        final List<Resource> frsrcs = rsrcs;
+        final ProgressAggregator pagg = new ProgressAggregator(obs, sizes);
+        ExecutorService exec = Executors.newFixedThreadPool(
+            Math.min(SysProps.unpackPoolSize(), groups.size()));
+        for (final List<Integer> group : groups.values()) {
+            exec.execute(new Runnable() {
+                public void run () {
+                    for (int index : group) {
+                        Resource rsrc = frsrcs.get(index);
+                        try {
+                            rsrc.applyAttrs();
+                        } catch (Exception e) {
+                            log.warning("Failure unpacking resource", "rsrc", rsrc, e);
+                            failed.add(rsrc);
+                        }
+                        pagg.startElement(index).progress(100);
+                    }
+                }
+            });
+        }
+        exec.shutdown();
+        exec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        log.info("Unpacked resources", "count", rsrcs.size(), "groups", groups.size(),
+                 "failed", failed.size(), "duration", (System.currentTimeMillis()-start) + "ms");
+        return failed;
     }
 
     /**
@@ -1491,7 +2215,16 @@ public class Application
     protected URL createVAppBase (long version)
         throws MalformedURLException
     {
-        String url = version < 0 ? _appbase : _appbase.replace("%VERSION%", String.valueOf(version));
+        return createVAppBase(_appbase, version);
+    }
+
+    /**
+     * Creates a versioned URL for the specified application base and version.
+     */
+    protected static URL createVAppBase (String appbase, long version)
+        throws MalformedURLException
+    {
+        String url = version < 0 ? appbase : appbase.replace("%VERSION%", String.valueOf(version));
         return HostWhitelist.verify(new URL(url));
     }
 
@@ -1503,6 +2236,8 @@ public class Application
         while (iter.hasNext()) {
             iter.next().clearMarker();
         }
+        // save the cleared ledger right away so that it can't outlive an interrupted update
+        getValidationLedger().save();
     }
 
     /**
@@ -1570,9 +2305,30 @@ public class Application
     protected void downloadDigestFiles ()
         throws IOException
     {
-        for (int version = 1; version <= Digest.VERSION; version++) {
-            downloadControlFile(Digest.digestFile(version), version);
+        // we only need the digest file against which we validate, which is that of the highest
+        // listed version; if the app allows it (via min_digest_version), we fall back to an older
+        // one for an appbase digested by a Digester which predates that version, but never to
+        // one older than the app allows, lest a blocked download downgrade our validation
+        IOException failure = null;
+        for (int ii = _digestVersions.length-1; ii >= 0; ii--) {
+            int version = _digestVersions[ii];
+            if (version < _minDigestVersion) break;
+            String path = Digest.digestFile(version);
+            File target;
+            try {
+                target = downloadFile(path);
+            } catch (IOException ioe) {
+                log.warning("Failed to download digest file", "path", path, "error", ioe);
+                if (failure == null) failure = ioe;
+                continue;
+            }
+            // a digest file which fails its signature check is never cause to fall back; we also
+            // leave any newer digest files in place, the download of which may have only failed
+            // transiently (we prefer the most recently installed digest file)
+            installControlFile(path, target, version);
+            return;
         }
+        throw failure;
     }
 
     /**
@@ -1588,8 +2344,18 @@ public class Application
     protected void downloadControlFile (String path, int sigVersion)
         throws IOException
     {
-        File target = downloadFile(path);
+        installControlFile(path, downloadFile(path), sigVersion);
+    }
 
+    /**
+     * Optionally validates the signature of {@code target}, a freshly downloaded copy of the
+     * specified control file, and moves it over the old file on the filesystem.
+     *
+     * @param sigVersion as for {@link #downloadControlFile}.
+     */
+    protected void installControlFile (String path, File target, int sigVersion)
+        throws IOException
+    {
         if (sigVersion > 0) {
             if (_envc.certs.isEmpty()) {
                 log.info("No signing certs, not verifying digest.txt", "path", path);
@@ -1668,11 +2434,47 @@ public class Application
         return target;
     }
 
+    /**
+     * Parses the {@code digest_versions} config, ignoring unsupported versions. If no (valid)
+     * versions are specified, {@link #DEFAULT_DIGEST_VERSIONS} are used: newer versions must be
+     * opted into, as clients validate against the highest listed version.
+     */
+    protected static int[] parseDigestVersions (String[] values)
+    {
+        SortedSet<Integer> versions = new TreeSet<>();
+        for (String value : values) {
+            try {
+                int version = Integer.parseInt(value.trim());
+                if (version >= 1 && version <= Digest.VERSION) {
+                    versions.add(version);
+                    continue;
+                }
+            } catch (NumberFormatException nfe) {
+                // fall through and warn
+            }
+            log.warning("Ignoring unsupported digest version", "version", value);
+        }
+        if (versions.isEmpty()) {
+            for (int version : DEFAULT_DIGEST_VERSIONS) {
+                versions.add(version);
+            }
+        }
+        int[] array = new int[versions.size()];
+        int idx = 0;
+        for (int version : versions) {
+            array[idx++] = version;
+        }
+        return array;
+    }
+
     /** Helper function for creating {@link Resource} instances. */
     protected Resource createResource (String path, EnumSet<Resource.Attr> attrs)
         throws MalformedURLException
     {
-        return new Resource(path, getRemoteURL(path), getLocalPath(path), attrs);
+        Resource rsrc = new Resource(path, getRemoteURL(path), getLocalPath(path), attrs,
+                                     getValidationLedger());
+        rsrc.setIncrementalUnpack(_incrementalUnpack);
+        return rsrc;
     }
 
     /** Helper function to add all values in {@code values} (if non-null) to {@code target}. */
@@ -1767,6 +2569,9 @@ public class Application
     protected long _targetVersion = -1;
     protected String _appbase;
     protected URL _vappbase;
+    protected Mirrors _mirrors = Mirrors.NONE;
+    protected String _selectedMirror;
+    protected boolean _mirrorProbed;
     protected URL _latest;
     protected String _class;
     protected String _dockName;
@@ -1774,6 +2579,31 @@ public class Application
     protected boolean _strictComments;
     protected boolean _allowOffline;
     protected int _maxConcDownloads;
+    protected boolean _adaptiveDownloads;
+    protected long _downloadRate;
+    protected long _backgroundDownloadRate;
+    protected boolean _resumeDownloads;
+    protected long _downloadSegmentThreshold;
+    protected int _downloadSegments;
+    protected boolean _verifyDuringDownload;
+    protected boolean _paranoidVerify;
+    protected boolean _verifyAfterLaunch;
+    protected boolean _incrementalUnpack;
+    protected boolean _streamingUnpack;
+    protected Set<Resource> _deferrable = Collections.emptySet();
+    protected Set<String> _damagedPaths = Collections.emptySet();
+    protected final Set<Resource> _deferred = Collections.newSetFromMap(
+        new ConcurrentHashMap<Resource, Boolean>());
+    protected int[] _digestVersions = parseDigestVersions(new String[0]);
+    protected int _minDigestVersion = digestVersion();
+    protected long _chunkManifestThreshold, _chunkManifestChunkSize = DEFAULT_CHUNK_SIZE;
+    protected final Map<Resource, Downloader.Repair> _repairs = new ConcurrentHashMap<>();
+    protected final Set<Resource> _repairAttempted = Collections.newSetFromMap(
+        new ConcurrentHashMap<Resource, Boolean>());
+    protected DigestCache _digestCache;
+    protected ValidationLedger _ledger;
+    protected DigestCache _verifyCache;
+    protected final Map<Resource, long[]> _verifiedDownloads = new ConcurrentHashMap<>();
 
     protected String _trackingURL;
     protected Set<Integer> _trackingPcts;
@@ -1822,6 +2652,35 @@ public class Application
 
     protected static final String[] EMPTY_STRING_ARRAY = new String[0];
 
+    /** The connect and read timeout (in seconds) used when probing mirrors. */
+    protected static final int MIRROR_PROBE_TIMEOUT = 5;
+
+    /** The statuses reported via {@link #VERIFY_STATUS_FILE}. */
+    protected static final String STATUS_VERIFYING = "verifying";
+    protected static final String STATUS_OK = "ok";
+    protected static final String STATUS_DAMAGED = "damaged";
+
+    /** Prefixes the line of {@link #VERIFY_STATUS_FILE} which reports its status. */
+    protected static final String STATUS_PREFIX = "status = ";
+
+    /** Prefixes the lines of {@link #VERIFY_STATUS_FILE} which identify damaged resources. */
+    protected static final String DAMAGED_PREFIX = "damaged = ";
+
+    /** The number of slowest resource verifications that are logged. */
+    protected static final int SLOWEST_VERIFIES_LOGGED = 5;
+
+    /** Resource verifications that take less than this many millis are not worth logging. */
+    protected static final long SLOW_VERIFY_MILLIS = 100L;
+
+    /** The default size of the chunks described by chunk manifests: 1MB. */
+    protected static final long DEFAULT_CHUNK_SIZE = 1024 * 1024L;
+
+    /** Resources of which more than this fraction is damaged are downloaded in full. */
+    protected static final double MAX_REPAIR_FRACTION = 0.5;
+
+    /** Resources with more than this many damaged ranges are downloaded in full. */
+    protected static final int MAX_REPAIR_RANGES = 64;
+
     protected static final String ENV_VAR_PREFIX = "%ENV.";
     protected static final Pattern ENV_VAR_PATTERN = Pattern.compile("%ENV\\.(.*?)%");
 
@@ -0,0 +1,219 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.threerings.getdown.util.StringUtil;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The hashes of the fixed size chunks of a resource's raw bytes, which allow the damaged portions
+ * of a local copy of the resource to be identified (and repaired without downloading the whole
+ * resource again). The manifest for a resource is stored alongside it, and the digest file records
+ * the manifest's {@link #root} hash (under the name returned by {@link #manifestPath}) which is
+ * used to validate the manifest when it is downloaded.
+ */
+public class ChunkManifest
+{
+    /**
+     * Returns the path of the chunk manifest for the resource at {@code path}, for the specified
+     * digest protocol version.
+     */
+    public static String manifestPath (String path, int version)
+    {
+        return path + SUFFIX + (version > 1 ? String.valueOf(version) : "");
+    }
+
+    /**
+     * Computes the chunk manifest for {@code file}.
+     * @param version the version of the digest protocol via which to hash the chunks.
+     */
+    public static ChunkManifest compute (File file, long chunkSize, int version)
+        throws IOException
+    {
+        return compute(file, chunkSize, new int[] { version })[0];
+    }
+
+    /**
+     * Computes the chunk manifests of {@code file} for several versions of the digest protocol at
+     * once, reading the file only once.
+     * @return the manifests, in the same order as {@code versions}.
+     */
+    public static ChunkManifest[] compute (File file, long chunkSize, int[] versions)
+        throws IOException
+    {
+        List<List<String>> hashes = hashChunks(file, chunkSize, versions);
+        ChunkManifest[] manifests = new ChunkManifest[versions.length];
+        for (int ii = 0; ii < versions.length; ii++) {
+            manifests[ii] = new ChunkManifest(file.length(), chunkSize, hashes.get(ii));
+        }
+        return manifests;
+    }
+
+    /**
+     * Parses a chunk manifest from the contents of a manifest file.
+     */
+    public static ChunkManifest parse (String data) throws IOException
+    {
+        long size = -1L, chunkSize = -1L;
+        List<String> hashes = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new StringReader(data))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (line.startsWith(SIZE_KEY)) {
+                    size = Long.parseLong(line.substring(SIZE_KEY.length()).trim());
+                } else if (line.startsWith(CHUNK_SIZE_KEY)) {
+                    chunkSize = Long.parseLong(line.substring(CHUNK_SIZE_KEY.length()).trim());
+                } else {
+                    hashes.add(line);
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Invalid chunk manifest", nfe);
+        }
+        if (size < 0 || chunkSize <= 0 || hashes.size() != chunkCount(size, chunkSize)) {
+            throw new IOException("Invalid chunk manifest [size=" + size + ", chunkSize=" +
+                                  chunkSize + ", chunks=" + hashes.size() + "]");
+        }
+        return new ChunkManifest(size, chunkSize, hashes);
+    }
+
+    public ChunkManifest (long size, long chunkSize, List<String> hashes)
+    {
+        _size = size;
+        _chunkSize = chunkSize;
+        _hashes = Collections.unmodifiableList(hashes);
+    }
+
+    /** Returns the size of the resource described by this manifest. */
+    public long size ()
+    {
+        return _size;
+    }
+
+    /** Returns the size of the chunks described by this manifest (all but the last chunk are this
+      * size). */
+    public long chunkSize ()
+    {
+        return _chunkSize;
+    }
+
+    /**
+     * Computes the root hash of this manifest: the hash of the resource size, the chunk size and
+     * the hashes of all the chunks.
+     * @param version the version of the digest protocol via which to compute the hash.
+     */
+    public String root (int version)
+    {
+        MessageDigest md = Digest.getMessageDigest(version);
+        md.update((_size + ":" + _chunkSize + ":").getBytes(UTF_8));
+        for (String hash : _hashes) {
+            md.update(hash.getBytes(UTF_8));
+        }
+        return StringUtil.hexlate(md.digest());
+    }
+
+    /**
+     * Writes this manifest to {@code file}.
+     */
+    public void write (File file) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(
+                 new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            out.println(SIZE_KEY + " " + _size);
+            out.println(CHUNK_SIZE_KEY + " " + _chunkSize);
+            for (String hash : _hashes) {
+                out.println(hash);
+            }
+        }
+    }
+
+    /**
+     * Hashes the chunks of {@code file} and compares them to the chunks of this manifest.
+     * Adjacent damaged chunks are coalesced into a single range.
+     *
+     * @param version the version of the digest protocol via which this manifest was computed.
+     * @return the damaged byte ranges of {@code file}, as ascending {@code [start, end]}
+     * (inclusive) pairs, which will be empty if {@code file} matches this manifest.
+     */
+    public List<long[]> damagedRanges (File file, int version) throws IOException
+    {
+        List<String> hashes = hashChunks(file, _chunkSize, new int[] { version }).get(0);
+        List<long[]> ranges = new ArrayList<>();
+        long[] range = null;
+        for (int ii = 0, ll = _hashes.size(); ii < ll; ii++) {
+            // chunks past the end of a short file are damaged, as are chunks that differ (which
+            // includes the last chunk of a long or short file)
+            if (ii < hashes.size() && hashes.get(ii).equals(_hashes.get(ii))) {
+                range = null;
+                continue;
+            }
+            long start = ii * _chunkSize, end = Math.min(start + _chunkSize, _size) - 1;
+            if (range != null) {
+                range[1] = end;
+            } else {
+                ranges.add(range = new long[] { start, end });
+            }
+        }
+        // if the file is too long (and otherwise intact), the last chunk must still be rewritten
+        // so that the file is truncated to the proper length
+        if (ranges.isEmpty() && file.length() != _size && _size > 0) {
+            ranges.add(new long[] { Math.max(0L, _size - 1), _size - 1 });
+        }
+        return ranges;
+    }
+
+    protected static List<List<String>> hashChunks (File file, long chunkSize, int[] versions)
+        throws IOException
+    {
+        List<List<String>> hashes = new ArrayList<>();
+        MessageDigest[] mds = new MessageDigest[versions.length];
+        for (int ii = 0; ii < versions.length; ii++) {
+            hashes.add(new ArrayList<String>());
+            mds[ii] = Digest.getMessageDigest(versions[ii]);
+        }
+        byte[] buffer = new byte[(int)Math.min(chunkSize, 64 * 1024)];
+        try (InputStream in = new FileInputStream(file)) {
+            while (true) {
+                long remain = chunkSize;
+                int read = 0;
+                while (remain > 0 &&
+                       (read = in.read(buffer, 0, (int)Math.min(buffer.length, remain))) > 0) {
+                    for (MessageDigest md : mds) {
+                        md.update(buffer, 0, read);
+                    }
+                    remain -= read;
+                }
+                if (remain == chunkSize) break; // nothing read, we're done
+                for (int ii = 0; ii < versions.length; ii++) {
+                    hashes.get(ii).add(StringUtil.hexlate(mds[ii].digest()));
+                }
+                if (read < 0) break;
+            }
+        }
+        return hashes;
+    }
+
+    protected static long chunkCount (long size, long chunkSize)
+    {
+        return (size + chunkSize - 1) / chunkSize;
+    }
+
+    protected final long _size, _chunkSize;
+    protected final List<String> _hashes;
+
+    protected static final String SUFFIX = ".chunks";
+    protected static final String SIZE_KEY = "size";
+    protected static final String CHUNK_SIZE_KEY = "chunk_size";
+}
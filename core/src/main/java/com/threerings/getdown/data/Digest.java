@@ -7,11 +7,14 @@ package com.threerings.getdown.data;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.threerings.getdown.util.Blake3;
 import com.threerings.getdown.util.Config;
 import com.threerings.getdown.util.MessageUtil;
 import com.threerings.getdown.util.ProgressObserver;
@@ -27,7 +30,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 public class Digest
 {
     /** The current version of the digest protocol. */
-    public static final int VERSION = 2;
+    public static final int VERSION = 4;
 
     /**
      * Returns the name of the digest file for the specified protocol version.
@@ -37,13 +40,24 @@ public class Digest
         return FILE_NAME + infix + FILE_SUFFIX;
     }
 
+    /**
+     * Returns the name of the binary {@link DigestIndex} of the digest file for the specified
+     * protocol version.
+     */
+    public static String indexFile (int version) {
+        String infix = version > 1 ? String.valueOf(version) : "";
+        return FILE_NAME + infix + INDEX_SUFFIX;
+    }
+
     /**
      * Returns the crypto algorithm used to sign digest files of the specified version.
      */
     public static String sigAlgorithm (int version) {
         switch (version) {
         case 1: return "SHA1withRSA";
-        case 2: return "SHA256withRSA";
+        case 2:
+        case 3:
+        case 4: return "SHA256withRSA";
         default: throw new IllegalArgumentException("Invalid digest version " + version);
         }
     }
@@ -54,12 +68,71 @@ public class Digest
      */
     public static void createDigest (int version, List<Resource> resources, File output)
         throws IOException
+    {
+        createDigest(version, resources, output, 0L, 0L);
+    }
+
+    /**
+     * Creates a digest file at the specified location using the supplied list of resources. A
+     * {@link ChunkManifest} is also created (alongside the resource) for every resource that is at
+     * least {@code chunkThreshold} bytes in size, and its root hash is recorded in the digest.
+     *
+     * @param version the version of the digest protocol to use.
+     * @param chunkThreshold the minimum size of a resource for which a chunk manifest is created,
+     * or {@code 0} to create no chunk manifests.
+     * @param chunkSize the size of the chunks described by said manifests.
+     */
+    public static void createDigest (int version, List<Resource> resources, File output,
+                                     long chunkThreshold, long chunkSize)
+        throws IOException
+    {
+        createDigest(version, resources, output, chunkThreshold, chunkSize, null);
+    }
+
+    /**
+     * Creates a digest file as {@link #createDigest(int,List,File,long,long)} does, but reuses the
+     * digests recorded in {@code cache} for resources whose files are unchanged since they were
+     * last hashed (along with their existing chunk manifests), and records newly computed digests
+     * therein. The caller is responsible for saving the cache.
+     *
+     * @param cache the digest cache to consult, or null to hash every resource.
+     */
+    public static void createDigest (int version, List<Resource> resources, File output,
+                                     long chunkThreshold, long chunkSize, DigestCache cache)
+        throws IOException
+    {
+        createDigests(new int[] { version }, resources, new File[] { output },
+                      chunkThreshold, chunkSize, cache);
+    }
+
+    /**
+     * Creates a digest file in {@code appdir} for each of the specified versions of the digest
+     * protocol, as {@link #createDigest(int,List,File,long,long,DigestCache)} does. Each resource
+     * is read only once, its bytes being fed to a message digest for each version, and the digest
+     * files are all written once every resource has been hashed.
+     */
+    public static void createDigests (int[] versions, List<Resource> resources, File appdir,
+                                      long chunkThreshold, long chunkSize, DigestCache cache)
+        throws IOException
+    {
+        File[] outputs = new File[versions.length];
+        for (int ii = 0; ii < versions.length; ii++) {
+            outputs[ii] = new File(appdir, digestFile(versions[ii]));
+        }
+        createDigests(versions, resources, outputs, chunkThreshold, chunkSize, cache);
+    }
+
+    protected static void createDigests (final int[] versions, List<Resource> resources,
+                                         File[] outputs, final long chunkThreshold,
+                                         final long chunkSize, final DigestCache cache)
+        throws IOException
     {
         // first compute the digests for all the resources in parallel
         ExecutorService exec = Executors.newFixedThreadPool(SysProps.threadPoolSize());
-        final Map<Resource, String> digests = new ConcurrentHashMap<>();
+        final Map<Resource, String[]> digests = new ConcurrentHashMap<>();
+        final Map<Resource, String[]> roots = new ConcurrentHashMap<>();
         final BlockingQueue<Object> completed = new LinkedBlockingQueue<>();
-        final int fversion = version;
+        final AtomicInteger reused = new AtomicInteger();
 
         long start = System.currentTimeMillis();
 
@@ -68,13 +141,88 @@ public class Digest
             exec.execute(new Runnable() {
                 public void run () {
                     try {
-                        MessageDigest md = getMessageDigest(fversion);
-                        digests.put(rsrc, rsrc.computeDigest(fversion, md, null));
+                        digests.put(rsrc, computeDigests(rsrc));
+                        File local = rsrc.getLocal();
+                        if (chunkThreshold > 0 && local.length() >= chunkThreshold) {
+                            roots.put(rsrc, computeChunkRoots(rsrc));
+                        }
                         completed.add(rsrc);
                     } catch (Throwable t) {
                         completed.add(new IOException("Error computing digest for: " + rsrc, t));
                     }
                 }
+
+                // computes the digests of the versions that are not cached, in a single pass
+                protected String[] computeDigests (Resource rsrc) throws IOException {
+                    String[] hashes = new String[versions.length];
+                    DigestCache.Stat stat = null;
+                    int missing = versions.length;
+                    if (cache != null) {
+                        stat = DigestCache.stat(rsrc.getLocal());
+                        for (int ii = 0; ii < versions.length; ii++) {
+                            hashes[ii] = cache.get(versions[ii], rsrc.getPath(), stat);
+                            if (hashes[ii] != null) {
+                                missing--;
+                            }
+                        }
+                    }
+                    if (missing == 0) {
+                        reused.incrementAndGet();
+                        _unchanged = true;
+                        return hashes;
+                    }
+
+                    int[] mversions = new int[missing];
+                    for (int ii = 0, mm = 0; ii < versions.length; ii++) {
+                        if (hashes[ii] == null) mversions[mm++] = versions[ii];
+                    }
+                    String[] computed = rsrc.computeDigests(mversions, null);
+                    for (int ii = 0, mm = 0; ii < versions.length; ii++) {
+                        if (hashes[ii] != null) continue;
+                        hashes[ii] = computed[mm++];
+                        if (cache != null) {
+                            cache.put(versions[ii], rsrc.getPath(), stat, hashes[ii]);
+                        }
+                    }
+                    return hashes;
+                }
+
+                // reuses the existing chunk manifests of an unchanged resource, and computes
+                // the rest in a single pass
+                protected String[] computeChunkRoots (Resource rsrc) throws IOException {
+                    File local = rsrc.getLocal();
+                    String[] rroots = new String[versions.length];
+                    ChunkManifest[] chunks = new ChunkManifest[versions.length];
+                    int missing = versions.length;
+                    for (int ii = 0; ii < versions.length; ii++) {
+                        File mfile = new File(ChunkManifest.manifestPath(
+                            local.getPath(), versions[ii]));
+                        chunks[ii] = _unchanged ? readChunkManifest(mfile, local, chunkSize) : null;
+                        if (chunks[ii] != null) {
+                            missing--;
+                        }
+                    }
+                    if (missing > 0) {
+                        int[] mversions = new int[missing];
+                        for (int ii = 0, mm = 0; ii < versions.length; ii++) {
+                            if (chunks[ii] == null) mversions[mm++] = versions[ii];
+                        }
+                        ChunkManifest[] computed = ChunkManifest.compute(
+                            local, chunkSize, mversions);
+                        for (int ii = 0, mm = 0; ii < versions.length; ii++) {
+                            if (chunks[ii] != null) continue;
+                            chunks[ii] = computed[mm++];
+                            chunks[ii].write(new File(ChunkManifest.manifestPath(
+                                local.getPath(), versions[ii])));
+                        }
+                    }
+                    for (int ii = 0; ii < versions.length; ii++) {
+                        rroots[ii] = chunks[ii].root(versions[ii]);
+                    }
+                    return rroots;
+                }
+
+                protected boolean _unchanged;
             });
         }
 
@@ -96,33 +244,49 @@ public class Digest
             throw new IOException("Timeout computing digests. Wow.");
         }
 
-        StringBuilder data = new StringBuilder();
-        try (FileOutputStream fos = new FileOutputStream(output);
-             OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
-             PrintWriter pout = new PrintWriter(osw)) {
-            // compute and append the digest of each resource in the list
-            for (Resource rsrc : resources) {
-                String path = rsrc.getPath();
-                String digest = digests.get(rsrc);
-                note(data, path, digest);
-                pout.println(path + " = " + digest);
+        // now write out a digest file for each version
+        for (int ii = 0; ii < versions.length; ii++) {
+            int version = versions[ii];
+            StringBuilder data = new StringBuilder();
+            try (FileOutputStream fos = new FileOutputStream(outputs[ii]);
+                 OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+                 PrintWriter pout = new PrintWriter(osw)) {
+                // compute and append the digest of each resource in the list
+                for (Resource rsrc : resources) {
+                    String path = rsrc.getPath();
+                    String digest = digests.get(rsrc)[ii];
+                    note(data, path, digest);
+                    pout.println(path + " = " + digest);
+                    String[] rroots = roots.get(rsrc);
+                    if (rroots != null) {
+                        String mpath = ChunkManifest.manifestPath(path, version);
+                        note(data, mpath, rroots[ii]);
+                        pout.println(mpath + " = " + rroots[ii]);
+                    }
+                }
+                // finally compute and append the digest for the file contents
+                MessageDigest md = getMessageDigest(version);
+                byte[] contents = data.toString().getBytes(UTF_8);
+                String filename = digestFile(version);
+                pout.println(filename + " = " + StringUtil.hexlate(md.digest(contents)));
             }
-            // finally compute and append the digest for the file contents
-            MessageDigest md = getMessageDigest(version);
-            byte[] contents = data.toString().getBytes(UTF_8);
-            String filename = digestFile(version);
-            pout.println(filename + " = " + StringUtil.hexlate(md.digest(contents)));
         }
 
         long elapsed = System.currentTimeMillis() - start;
-        log.debug("Computed digests [rsrcs=" + resources.size() + ", time=" + elapsed + "ms]");
+        log.debug("Computed digests [versions=" + Arrays.toString(versions) +
+                  ", rsrcs=" + resources.size() + ", reused=" + reused +
+                  ", time=" + elapsed + "ms]");
     }
 
     /**
-     * Obtains an appropriate message digest instance for use by the Getdown system.
+     * Obtains an appropriate message digest instance for use by the Getdown system: MD5 for
+     * version 1 of the digest protocol, SHA-256 for versions 2 and 3 and BLAKE3 for version 4.
      */
     public static MessageDigest getMessageDigest (int version)
     {
+        if (version >= 4) {
+            return new Blake3();
+        }
         String algo = version > 1 ? "SHA-256" : "MD5";
         try {
             return MessageDigest.getInstance(algo);
@@ -146,16 +310,28 @@ public class Digest
      */
     public Digest (File appdir, int version, boolean strictComments) throws IOException
     {
-        // parse and validate our digest file contents
+        _version = version;
+
+        // if we have an index of this very digest file, we can avoid parsing it
         String filename = digestFile(version);
-        StringBuilder data = new StringBuilder();
         File dfile = new File(appdir, filename);
+        byte[] text = Files.readAllBytes(dfile.toPath());
+        File ifile = new File(appdir, indexFile(version));
+        _index = DigestIndex.load(ifile, version, strictComments, text);
+        if (_index != null) {
+            _metaDigest = _index.getMetaDigest();
+            return;
+        }
+
+        // parse and validate our digest file contents
+        StringBuilder data = new StringBuilder();
         Config.ParseOpts opts = Config.createOpts(false);
         opts.strictComments = strictComments;
         // bias = toward key: the key is the filename and could conceivably contain = signs, value
         // is the hex encoded hash which will not contain =
         opts.biasToKey = true;
-        for (String[] pair : Config.parsePairs(dfile, opts)) {
+        Reader source = new InputStreamReader(new ByteArrayInputStream(text), UTF_8);
+        for (String[] pair : Config.parsePairs(source, opts)) {
             if (pair[0].equals(filename)) {
                 _metaDigest = pair[1];
                 break;
@@ -172,6 +348,23 @@ public class Digest
             String err = MessageUtil.tcompose("m.invalid_digest_file", _metaDigest, hash);
             throw new IOException(err);
         }
+
+        // write an index of our digests so that we needn't parse them again next time
+        try {
+            if (!DigestIndex.write(ifile, version, strictComments, text, _digests, _metaDigest)) {
+                log.info("Not indexing digest file with unexpected hashes", "file", dfile);
+            }
+        } catch (IOException ioe) {
+            log.info("Failed to write digest index", "file", ifile, "error", ioe);
+        }
+    }
+
+    /**
+     * Returns the version of the digest protocol used by this digest.
+     */
+    public int getVersion ()
+    {
+        return _version;
     }
 
     /**
@@ -190,10 +383,33 @@ public class Digest
      * error was encountered during the validation process.
      */
     public boolean validateResource (Resource resource, ProgressObserver obs)
+    {
+        return validateResource(resource, obs, null);
+    }
+
+    /**
+     * Validates {@code resource} as {@link #validateResource(Resource,ProgressObserver)} does, but
+     * uses the digest recorded in {@code cache} if the resource's file is unchanged since it was
+     * last hashed, and records newly computed digests therein.
+     *
+     * @param cache the digest cache to consult, or null to always hash the resource.
+     */
+    public boolean validateResource (Resource resource, ProgressObserver obs, DigestCache cache)
     {
         try {
-            String chash = resource.computeDigest(VERSION, getMessageDigest(VERSION), obs);
-            String ehash = _digests.get(resource.getPath());
+            String chash = null;
+            DigestCache.Stat stat = null;
+            if (cache != null) {
+                stat = DigestCache.stat(resource.getDigestFile());
+                chash = cache.get(_version, resource.getPath(), stat);
+            }
+            if (chash == null) {
+                chash = resource.computeDigest(_version, getMessageDigest(_version), obs);
+                if (cache != null) {
+                    cache.put(_version, resource.getPath(), stat, chash);
+                }
+            }
+            String ehash = lookup(resource.getPath());
             if (chash.equals(ehash)) {
                 return true;
             }
@@ -210,7 +426,40 @@ public class Digest
      */
     public String getDigest (Resource resource)
     {
-        return _digests.get(resource.getPath());
+        return lookup(resource.getPath());
+    }
+
+    /**
+     * Returns the root hash of the {@link ChunkManifest} for the given {@code resource}, or null
+     * if no chunk manifest was created for it.
+     */
+    public String getChunkManifestRoot (Resource resource)
+    {
+        return lookup(ChunkManifest.manifestPath(resource.getPath(), _version));
+    }
+
+    /** Returns the digest recorded for {@code path}, from our index if we have one. */
+    protected String lookup (String path)
+    {
+        return (_index != null) ? _index.get(path) : _digests.get(path);
+    }
+
+    /**
+     * Reads the chunk manifest previously created for {@code local}, returning null if it does not
+     * exist or does not match {@code local}'s size and the requested chunk size.
+     */
+    protected static ChunkManifest readChunkManifest (File mfile, File local, long chunkSize)
+    {
+        if (!mfile.exists()) return null;
+        try {
+            ChunkManifest chunks = ChunkManifest.parse(
+                new String(Files.readAllBytes(mfile.toPath()), UTF_8));
+            return (chunks.size() == local.length() && chunks.chunkSize() == chunkSize) ?
+                chunks : null;
+        } catch (IOException ioe) {
+            log.warning("Failed to read chunk manifest", "file", mfile, "error", ioe);
+            return null;
+        }
     }
 
     /** Used by {@link #createDigest} and {@link Digest}. */
@@ -219,9 +468,12 @@ public class Digest
         data.append(path).append(" = ").append(digest).append("\n");
     }
 
+    protected final int _version;
     protected final HashMap<String, String> _digests = new HashMap<>();
+    protected DigestIndex _index;
     protected String _metaDigest = "";
 
     protected static final String FILE_NAME = "digest";
     protected static final String FILE_SUFFIX = ".txt";
+    protected static final String INDEX_SUFFIX = ".idx";
 }
@@ -0,0 +1,197 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.threerings.getdown.util.FileUtil;
+
+import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Caches the digests computed for resources, keyed on the identity of the file that was hashed
+ * (its size, modification time and, where the platform provides one, its file key/inode). A
+ * resource whose file is unchanged since it was last hashed can thus be validated without reading
+ * its contents.
+ */
+public class DigestCache
+{
+    /** The identity of a file at a particular point in time. */
+    public static final class Stat
+    {
+        public final long size;
+        public final long lastModified;
+        public final String fileKey;
+
+        /** The time at which this stat was obtained (not persisted). */
+        public final long taken;
+
+        public Stat (long size, long lastModified, String fileKey) {
+            this(size, lastModified, fileKey, 0L);
+        }
+
+        public Stat (long size, long lastModified, String fileKey, long taken) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = (fileKey == null) ? "" : fileKey;
+            this.taken = taken;
+        }
+
+        @Override public boolean equals (Object other) {
+            if (!(other instanceof Stat)) return false;
+            Stat os = (Stat)other;
+            return size == os.size && lastModified == os.lastModified &&
+                fileKey.equals(os.fileKey);
+        }
+
+        @Override public int hashCode () {
+            return (int)(size ^ lastModified) ^ fileKey.hashCode();
+        }
+    }
+
+    /**
+     * Returns the current identity of {@code file}, or null if it cannot be determined.
+     */
+    public static Stat stat (File file)
+    {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(
+                file.toPath(), BasicFileAttributes.class);
+            Object key = attrs.fileKey();
+            return new Stat(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                            (key == null) ? null : key.toString(), System.currentTimeMillis());
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a digest cache which is stored in (and loaded from, if it exists) {@code file}.
+     */
+    public DigestCache (File file)
+    {
+        _file = file;
+        load();
+    }
+
+    /**
+     * Returns the cached digest for the resource at {@code path}, computed via the specified
+     * digest protocol version, or null if no digest is cached or the file has changed since the
+     * digest was computed.
+     */
+    public String get (int version, String path, Stat stat)
+    {
+        Entry entry = _entries.get(key(version, path));
+        return (entry != null && stat != null && entry.stat.equals(stat)) ? entry.digest : null;
+    }
+
+    /**
+     * Records the digest computed for the resource at {@code path}.
+     * @param stat the identity of the hashed file, obtained before it was hashed.
+     */
+    public void put (int version, String path, Stat stat, String digest)
+    {
+        if (stat == null) return;
+        // a file modified within the resolution of the file system's timestamps after we stat'd it
+        // could change without its stat changing, so we don't trust recently modified files
+        if (stat.taken - stat.lastModified < RACY_INTERVAL) {
+            _entries.remove(key(version, path));
+        } else {
+            _entries.put(key(version, path), new Entry(stat, digest));
+        }
+        _dirty = true;
+    }
+
+    /**
+     * Removes any cached digest for the resource at {@code path}.
+     */
+    public void remove (int version, String path)
+    {
+        if (_entries.remove(key(version, path)) != null) {
+            _dirty = true;
+        }
+    }
+
+    /**
+     * Writes this cache to disk, if it has changed since it was loaded.
+     */
+    public synchronized void save ()
+    {
+        if (!_dirty) return;
+        File temp = new File(_file.getPath() + "_new");
+        try (PrintWriter out = new PrintWriter(
+                 new OutputStreamWriter(new FileOutputStream(temp), UTF_8))) {
+            out.println(HEADER);
+            for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+                Entry e = entry.getValue();
+                out.println(e.stat.size + "\t" + e.stat.lastModified + "\t" + e.stat.fileKey +
+                            "\t" + e.digest + "\t" + entry.getKey());
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to write digest cache", "file", temp, "error", ioe);
+            return;
+        }
+        // replace the old cache in one fell swoop so that we never leave a partial cache behind
+        if (!FileUtil.renameTo(temp, _file)) {
+            log.warning("Failed to replace digest cache", "file", _file);
+            return;
+        }
+        _dirty = false;
+    }
+
+    protected void load ()
+    {
+        if (!_file.exists()) return;
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(_file), UTF_8))) {
+            if (!HEADER.equals(in.readLine())) {
+                log.info("Ignoring digest cache with unknown format", "file", _file);
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] bits = line.split("\t", 5);
+                if (bits.length != 5) continue;
+                Stat stat = new Stat(Long.parseLong(bits[0]), Long.parseLong(bits[1]), bits[2]);
+                _entries.put(bits[4], new Entry(stat, bits[3]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warning("Failed to read digest cache", "file", _file, "error", e);
+            _entries.clear();
+        }
+    }
+
+    protected static String key (int version, String path)
+    {
+        return version + ":" + path;
+    }
+
+    protected static final class Entry
+    {
+        public final Stat stat;
+        public final String digest;
+
+        public Entry (Stat stat, String digest) {
+            this.stat = stat;
+            this.digest = digest;
+        }
+    }
+
+    protected final File _file;
+    protected final Map<String, Entry> _entries = new ConcurrentHashMap<>();
+    protected volatile boolean _dirty;
+
+    /** The first line of a digest cache file, which identifies its format. */
+    protected static final String HEADER = "# getdown digest cache 1";
+
+    /** Files modified less than this many millis before they are stat'd are not cached. */
+    protected static final long RACY_INTERVAL = 2000L;
+}
@@ -0,0 +1,270 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.StringUtil;
+
+import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A compact binary form of a digest file, which can be loaded without parsing (and allocating a
+ * handful of strings for every line of) the text digest file. The text file remains the signed
+ * source of truth: an index records the hash of the text file from which it was built, and is
+ * ignored if that no longer matches.
+ *
+ * <p>The index consists of a header, a table of fixed size records sorted by the UTF-8 bytes of
+ * their paths (so that paths can be found by binary search), and a pool of path bytes. All values
+ * are big-endian:
+ * <pre>
+ * int magic, int format, int digest version, int flags, int hash size (H), int count (N),
+ * int pool size (P)
+ * byte[H] hash of the text digest file
+ * byte[H] digest of the text digest file's contents (see {@link Digest#getMetaDigest})
+ * N * (int path offset, int path length, byte[H] hash)
+ * byte[P] path bytes
+ * </pre>
+ */
+public class DigestIndex
+{
+    /**
+     * Builds an index of the supplied digests and writes it to {@code file}.
+     *
+     * @param version the version of the digest protocol via which the digests were computed.
+     * @param strictComments whether the text digest file was parsed with strict comments.
+     * @param text the contents of the text digest file from which the digests were parsed.
+     * @return false if the digests could not be indexed because one or more of them is not a
+     * (lower case) HEX encoded hash of the expected size.
+     */
+    public static boolean write (File file, int version, boolean strictComments, byte[] text,
+                                 Map<String, String> digests, String metaDigest)
+        throws IOException
+    {
+        MessageDigest md = Digest.getMessageDigest(version);
+        byte[] textHash = md.digest(text);
+        int hashSize = textHash.length;
+        byte[] meta = unhexlate(metaDigest, hashSize);
+        if (meta == null) return false;
+
+        List<byte[]> paths = new ArrayList<>(digests.size());
+        for (String path : digests.keySet()) {
+            paths.add(path.getBytes(UTF_8));
+        }
+        Collections.sort(paths, PATH_ORDER);
+
+        int poolSize = 0;
+        ByteBuffer records = ByteBuffer.allocate(paths.size() * (8 + hashSize));
+        for (byte[] path : paths) {
+            byte[] hash = unhexlate(digests.get(new String(path, UTF_8)), hashSize);
+            if (hash == null) return false;
+            records.putInt(poolSize).putInt(path.length).put(hash);
+            poolSize += path.length;
+        }
+
+        // write to a temp file and move it into place so that a reader never sees a partial index
+        File temp = new File(file.getPath() + "_new");
+        try (DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(version);
+            out.writeInt(flags(strictComments));
+            out.writeInt(hashSize);
+            out.writeInt(paths.size());
+            out.writeInt(poolSize);
+            out.write(textHash);
+            out.write(meta);
+            out.write(records.array());
+            for (byte[] path : paths) {
+                out.write(path);
+            }
+        }
+        if (!FileUtil.renameTo(temp, file)) {
+            throw new IOException("Failed to move " + temp + " to " + file);
+        }
+        return true;
+    }
+
+    /**
+     * Loads the index in {@code file}, returning null if it does not exist, is malformed, or was
+     * not built from {@code text} (parsed in the same manner).
+     *
+     * @param version the version of the digest protocol used by the text digest file.
+     * @param strictComments whether the text digest file is to be parsed with strict comments.
+     * @param text the contents of the text digest file.
+     */
+    public static DigestIndex load (File file, int version, boolean strictComments, byte[] text)
+    {
+        if (!file.exists()) return null;
+        try {
+            // we read the index into memory rather than mapping it, as a mapped file can't be
+            // replaced on Windows until the mapping is garbage collected
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC ||
+                data.getInt() != FORMAT || data.getInt() != version ||
+                data.getInt() != flags(strictComments)) {
+                log.info("Ignoring digest index with unknown format", "file", file);
+                return null;
+            }
+            int hashSize = data.getInt(), count = data.getInt(), poolSize = data.getInt();
+            long size = HEADER_SIZE + 2L * hashSize + (long)count * (8 + hashSize) + poolSize;
+            if (hashSize <= 0 || count < 0 || poolSize < 0 || size != data.capacity()) {
+                log.info("Ignoring malformed digest index", "file", file);
+                return null;
+            }
+
+            byte[] textHash = new byte[hashSize], meta = new byte[hashSize];
+            data.get(textHash).get(meta);
+            if (!Arrays.equals(textHash, Digest.getMessageDigest(version).digest(text))) {
+                log.info("Ignoring stale digest index", "file", file);
+                return null;
+            }
+
+            DigestIndex index = new DigestIndex(data, hashSize, count, StringUtil.hexlate(meta));
+            for (int ii = 0; ii < count; ii++) {
+                if (index.pathOffset(ii) + (long)index.pathLength(ii) > poolSize) {
+                    log.info("Ignoring malformed digest index", "file", file);
+                    return null;
+                }
+            }
+            return index;
+
+        } catch (IOException ioe) {
+            log.warning("Failed to read digest index", "file", file, "error", ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of digests in this index.
+     */
+    public int size ()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns the digest of the digest file's contents.
+     */
+    public String getMetaDigest ()
+    {
+        return _metaDigest;
+    }
+
+    /**
+     * Returns the digest recorded for {@code path}, or null if this index has no such path.
+     */
+    public String get (String path)
+    {
+        byte[] key = path.getBytes(UTF_8);
+        int low = 0, high = _count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareTo(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                // we use only absolute reads so that lookups can happen on several threads at once
+                byte[] hash = new byte[_hashSize];
+                for (int ii = 0, offset = recordOffset(mid) + 8; ii < _hashSize; ii++) {
+                    hash[ii] = _data.get(offset + ii);
+                }
+                return StringUtil.hexlate(hash);
+            }
+        }
+        return null;
+    }
+
+    protected DigestIndex (ByteBuffer data, int hashSize, int count, String metaDigest)
+    {
+        _data = data;
+        _hashSize = hashSize;
+        _count = count;
+        _metaDigest = metaDigest;
+        _poolStart = recordOffset(count);
+    }
+
+    /** Compares the path of the {@code idx}th record with {@code key}, as {@link #PATH_ORDER}. */
+    protected int compareTo (int idx, byte[] key)
+    {
+        int offset = _poolStart + pathOffset(idx), length = pathLength(idx);
+        for (int ii = 0, ll = Math.min(length, key.length); ii < ll; ii++) {
+            int cmp = (_data.get(offset + ii) & 0xFF) - (key[ii] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return length - key.length;
+    }
+
+    protected int recordOffset (int idx)
+    {
+        return HEADER_SIZE + 2 * _hashSize + idx * (8 + _hashSize);
+    }
+
+    protected int pathOffset (int idx)
+    {
+        return _data.getInt(recordOffset(idx));
+    }
+
+    protected int pathLength (int idx)
+    {
+        return _data.getInt(recordOffset(idx) + 4);
+    }
+
+    protected static int flags (boolean strictComments)
+    {
+        return strictComments ? STRICT_COMMENTS : 0;
+    }
+
+    /** Decodes {@code hex}, returning null unless it is a lower case (as generated by
+      * {@link StringUtil#hexlate}) HEX encoding of {@code size} bytes. */
+    protected static byte[] unhexlate (String hex, int size)
+    {
+        byte[] bytes = StringUtil.unhexlate(hex);
+        return (bytes != null && bytes.length == size && StringUtil.hexlate(bytes).equals(hex)) ?
+            bytes : null;
+    }
+
+    protected final ByteBuffer _data;
+    protected final int _hashSize, _count, _poolStart;
+    protected final String _metaDigest;
+
+    /** Orders paths by their UTF-8 bytes, compared as unsigned values. */
+    protected static final Comparator<byte[]> PATH_ORDER = new Comparator<byte[]>() {
+        public int compare (byte[] a, byte[] b) {
+            for (int ii = 0, ll = Math.min(a.length, b.length); ii < ll; ii++) {
+                int cmp = (a[ii] & 0xFF) - (b[ii] & 0xFF);
+                if (cmp != 0) return cmp;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /** Identifies a digest index file: "GDIX". */
+    protected static final int MAGIC = 0x47444958;
+
+    /** The version of the index format. */
+    protected static final int FORMAT = 1;
+
+    /** The size of the fixed header fields (which precede the two header hashes). */
+    protected static final int HEADER_SIZE = 7 * 4;
+
+    /** A flag indicating that the text digest file was parsed with strict comments. */
+    protected static final int STRICT_COMMENTS = 1;
+}
@@ -177,8 +177,13 @@ public final class EnvConfig {
             Arrays.asList(argv).subList(2, argv.length) :
             Collections.<String>emptyList();
 
-        // load X.509 certificate if it exists
-        File crtFile = new File(appDirFile, Digest.digestFile(Digest.VERSION) + ".crt");
+        // load X.509 certificate if it exists; installations predating the current digest version
+        // will have named it after the digest file of the version current when they were created
+        File crtFile = null;
+        for (int version = Digest.VERSION; version > 1; version--) {
+            crtFile = new File(appDirFile, Digest.digestFile(version) + ".crt");
+            if (crtFile.exists()) break;
+        }
         List<Certificate> certs = new ArrayList<>();
         if (crtFile.exists()) {
             try (FileInputStream fis = new FileInputStream(crtFile)) {
@@ -49,10 +49,11 @@ public class PathBuilder
     }
 
     /**
-     * Builds a {@link ClassPath} instance for {@code app} by first copying the code resources into
-     * a cache directory and then referencing them from there. This avoids problems with
-     * overwriting in-use classpath elements when the application is later updated. This also
-     * "garbage collects" expired caches if necessary.
+     * Builds a {@link ClassPath} instance for {@code app} by first copying (or, where possible,
+     * hard linking) the code resources into a cache directory and then referencing them from
+     * there. This avoids problems with overwriting in-use classpath elements when the application
+     * is later updated, as updates replace resources rather than modifying them in place. This
+     * also "garbage collects" expired caches if necessary.
      */
     public static ClassPath buildCachedClassPath (Application app) throws IOException
     {
@@ -7,15 +7,23 @@ package com.threerings.getdown.data;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import com.threerings.getdown.util.Blake3;
 import com.threerings.getdown.util.FileUtil;
 import com.threerings.getdown.util.ProgressObserver;
 import com.threerings.getdown.util.StringUtil;
 import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * Models a single file resource used by an {@link Application}.
@@ -69,6 +77,13 @@ public class Resource implements Comparable<Resource>
                 List<? extends ZipEntry> entries = Collections.list(zip.entries());
                 Collections.sort(entries, ENTRY_COMP);
 
+                // as of version 3, the digest is computed over the digests of the individual
+                // entries, which allows us to inflate and hash them in parallel
+                if (version >= 3) {
+                    digestEntries(version, zip, entries, md, obs);
+                    return StringUtil.hexlate(md.digest());
+                }
+
                 int eidx = 0;
                 for (ZipEntry entry : entries) {
                     // old versions of the digest code skipped metadata
@@ -101,6 +116,31 @@ public class Resource implements Comparable<Resource>
                 }
             }
 
+        } else if (version >= 4 && target.length() >= PARALLEL_FILE_DIGEST_SIZE &&
+                   Runtime.getRuntime().availableProcessors() > 1) {
+            // as of version 4 we use BLAKE3, a tree hash, whose subtrees we can hash in parallel
+            try (FileInputStream fin = new FileInputStream(target)) {
+                return StringUtil.hexlate(Blake3.digest(fin.getChannel(), digestPool(), obs));
+            }
+
+        } else if (target.length() >= DIRECT_DIGEST_THRESHOLD) {
+            // large files are read via a channel into a big direct buffer, which saves copying
+            // each chunk onto the Java heap and cuts the number of reads by a couple of orders of
+            // magnitude; we avoid mapping the file as a mapped file can't be renamed or deleted on
+            // Windows until the mapping is garbage collected
+            long totalSize = target.length(), position = 0L;
+            ByteBuffer dbuffer = directBuffer();
+            try (FileInputStream fin = new FileInputStream(target)) {
+                FileChannel channel = fin.getChannel();
+                while ((read = channel.read(dbuffer)) != -1) {
+                    dbuffer.flip();
+                    md.update(dbuffer);
+                    dbuffer.clear();
+                    position += read;
+                    updateProgress(obs, position, totalSize);
+                }
+            }
+
         } else {
             long totalSize = target.length(), position = 0L;
             try (FileInputStream fin = new FileInputStream(target)) {
@@ -114,6 +154,216 @@ public class Resource implements Comparable<Resource>
         return StringUtil.hexlate(md.digest());
     }
 
+    /**
+     * Computes the hashes of the supplied file for several versions of the digest protocol at once,
+     * reading (and, if it is a zip file, inflating) the file only once and feeding its bytes to a
+     * message digest for each version.
+     *
+     * @return the hashes of the file, in the same order as {@code versions}.
+     */
+    public static String[] computeDigests (int[] versions, File target, ProgressObserver obs)
+        throws IOException
+    {
+        // with only one version to compute, we can take advantage of its parallel hashing
+        if (versions.length == 1) {
+            MessageDigest md = Digest.getMessageDigest(versions[0]);
+            return new String[] { computeDigest(versions[0], target, md, obs) };
+        }
+
+        MessageDigest[] mds = new MessageDigest[versions.length];
+        for (int ii = 0; ii < versions.length; ii++) {
+            mds[ii] = Digest.getMessageDigest(versions[ii]);
+        }
+
+        if (isJar(target) || isZip(target)) {
+            try (ZipFile zip = new ZipFile(target)) {
+                List<? extends ZipEntry> entries = Collections.list(zip.entries());
+                Collections.sort(entries, ENTRY_COMP);
+
+                // as of version 3 each entry is hashed separately (see computeDigest)
+                MessageDigest[] emds = new MessageDigest[versions.length];
+                for (int ii = 0; ii < versions.length; ii++) {
+                    if (versions[ii] >= 3) {
+                        emds[ii] = Digest.getMessageDigest(versions[ii]);
+                    }
+                }
+
+                byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+                int eidx = 0;
+                for (ZipEntry entry : entries) {
+                    // old versions of the digest code skipped metadata
+                    boolean meta = entry.getName().startsWith("META-INF");
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            for (int ii = 0; ii < versions.length; ii++) {
+                                if (emds[ii] != null) {
+                                    emds[ii].update(buffer, 0, read);
+                                } else if (versions[ii] >= 2 || !meta) {
+                                    mds[ii].update(buffer, 0, read);
+                                }
+                            }
+                        }
+                    }
+                    byte[] name = entry.getName().getBytes(UTF_8);
+                    for (int ii = 0; ii < versions.length; ii++) {
+                        if (emds[ii] != null) {
+                            mds[ii].update(name);
+                            mds[ii].update((byte)0);
+                            mds[ii].update(emds[ii].digest());
+                        }
+                    }
+                    updateProgress(obs, ++eidx, entries.size());
+                }
+            }
+
+        } else {
+            long totalSize = target.length(), position = 0L;
+            ByteBuffer buffer = (totalSize >= DIRECT_DIGEST_THRESHOLD) ?
+                directBuffer() : ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+            try (FileInputStream fin = new FileInputStream(target)) {
+                FileChannel channel = fin.getChannel();
+                int read;
+                while ((read = channel.read(buffer)) != -1) {
+                    buffer.flip();
+                    for (MessageDigest md : mds) {
+                        md.update(buffer.duplicate());
+                    }
+                    buffer.clear();
+                    position += read;
+                    updateProgress(obs, position, totalSize);
+                }
+            }
+        }
+
+        String[] digests = new String[versions.length];
+        for (int ii = 0; ii < versions.length; ii++) {
+            digests[ii] = StringUtil.hexlate(mds[ii].digest());
+        }
+        return digests;
+    }
+
+    /**
+     * Computes the digest of each of the supplied (sorted) zip entries in parallel, then feeds the
+     * name and digest of each entry, in order, into {@code md}.
+     */
+    protected static void digestEntries (int version, ZipFile zip, List<? extends ZipEntry> entries,
+                                         MessageDigest md, ProgressObserver obs)
+        throws IOException
+    {
+        byte[][] digests = new byte[entries.size()][];
+        try {
+            digestPool().invoke(new EntryDigester(
+                version, zip, entries, digests, obs, new AtomicInteger(), 0, entries.size()));
+        } catch (RuntimeException re) {
+            // the pool may rewrap our exception, so dig down to the I/O error that caused it
+            for (Throwable t = re; t != null; t = t.getCause()) {
+                if (t instanceof IOException) throw (IOException)t;
+            }
+            throw re;
+        }
+        for (int ii = 0; ii < digests.length; ii++) {
+            noteEntryDigest(md, entries.get(ii).getName(), digests[ii]);
+        }
+    }
+
+    /**
+     * Feeds the name and digest of a zip entry into {@code md}, which computes the (version 3 or
+     * newer) digest of a zip file when fed each of its entries in order of name.
+     */
+    public static void noteEntryDigest (MessageDigest md, String name, byte[] digest)
+    {
+        md.update(name.getBytes(UTF_8));
+        md.update((byte)0);
+        md.update(digest);
+    }
+
+    /**
+     * Returns this thread's direct buffer for hashing large files, cleared and ready for reading.
+     * Direct buffers are expensive to allocate and are only freed when garbage collected, so each
+     * thread reuses a single buffer rather than allocating one per file.
+     */
+    protected static ByteBuffer directBuffer ()
+    {
+        ByteBuffer buffer = _directBuffer.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns the pool on which zip entries are hashed, creating it if necessary. */
+    protected static synchronized ForkJoinPool digestPool ()
+    {
+        if (_digestPool == null) {
+            _digestPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return _digestPool;
+    }
+
+    /**
+     * Hashes a range of zip entries, splitting the range in two and hashing the halves in parallel
+     * if it contains enough data to make doing so worthwhile.
+     */
+    protected static class EntryDigester extends RecursiveAction
+    {
+        public EntryDigester (int version, ZipFile zip, List<? extends ZipEntry> entries,
+                              byte[][] digests, ProgressObserver obs, AtomicInteger done,
+                              int start, int end) {
+            _version = version;
+            _zip = zip;
+            _entries = entries;
+            _digests = digests;
+            _obs = obs;
+            _done = done;
+            _start = start;
+            _end = end;
+        }
+
+        @Override protected void compute () {
+            long size = 0L;
+            for (int ii = _start; ii < _end; ii++) {
+                size += Math.max(_entries.get(ii).getSize(), 0L);
+            }
+            if (_end - _start > 1 && size > PARALLEL_DIGEST_SIZE) {
+                int mid = (_start + _end) / 2;
+                invokeAll(new EntryDigester(_version, _zip, _entries, _digests, _obs, _done,
+                                            _start, mid),
+                          new EntryDigester(_version, _zip, _entries, _digests, _obs, _done,
+                                            mid, _end));
+                return;
+            }
+
+            MessageDigest md = Digest.getMessageDigest(_version);
+            byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+            for (int ii = _start; ii < _end; ii++) {
+                md.reset();
+                try (InputStream in = _zip.getInputStream(_entries.get(ii))) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        md.update(buffer, 0, read);
+                    }
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+                _digests[ii] = md.digest();
+
+                int done = _done.incrementAndGet();
+                if (_obs != null) {
+                    synchronized (_obs) {
+                        updateProgress(_obs, done, _entries.size());
+                    }
+                }
+            }
+        }
+
+        protected final int _version;
+        protected final ZipFile _zip;
+        protected final List<? extends ZipEntry> _entries;
+        protected final byte[][] _digests;
+        protected final ProgressObserver _obs;
+        protected final AtomicInteger _done;
+        protected final int _start, _end;
+    }
+
     /**
      * Returns whether {@code file} is a {@code zip} file.
      */
@@ -133,15 +383,28 @@ public class Resource implements Comparable<Resource>
     }
 
     /**
-     * Creates a resource with the supplied remote URL and local path.
+     * Creates a resource with the supplied remote URL and local path, whose validity is tracked
+     * via a marker file.
      */
     public Resource (String path, URL remote, File local, EnumSet<Attr> attrs)
+    {
+        this(path, remote, local, attrs, null);
+    }
+
+    /**
+     * Creates a resource with the supplied remote URL and local path.
+     * @param ledger the ledger via which this resource's validity is tracked, or null to use a
+     * marker file.
+     */
+    public Resource (String path, URL remote, File local, EnumSet<Attr> attrs,
+                     ValidationLedger ledger)
     {
         _path = path;
         _remote = remote;
         _local = local;
         _localNew = new File(local.toString() + "_new");
         _marker = new File(_local.getPath() + "v");
+        _ledger = ledger;
 
         _attrs = attrs;
         _isZip = isJar(local) || isZip(local);
@@ -231,21 +494,41 @@ public class Resource implements Comparable<Resource>
     public String computeDigest (int version, MessageDigest md, ProgressObserver obs)
         throws IOException
     {
-        File file;
+        return computeDigest(version, getDigestFile(), md, obs);
+    }
+
+    /**
+     * Computes the hashes of this resource's underlying file for several versions of the digest
+     * protocol at once, reading the file only once.
+     * @return the hashes, in the same order as {@code versions}.
+     */
+    public String[] computeDigests (int[] versions, ProgressObserver obs)
+        throws IOException
+    {
+        return computeDigests(versions, getDigestFile(), obs);
+    }
+
+    /**
+     * Returns the file that is hashed by {@link #computeDigest(int,MessageDigest,ProgressObserver)}:
+     * the {@code _new} file if one exists, otherwise the local file.
+     */
+    public File getDigestFile ()
+    {
         if (_local.toString().toLowerCase(Locale.ROOT).endsWith(Application.CONFIG_FILE)) {
-            file = _local;
-        } else {
-            file = _localNew.exists() ? _localNew : _local;
+            return _local;
         }
-        return computeDigest(version, file, md, obs);
+        return _localNew.exists() ? _localNew : _local;
     }
 
     /**
-     * Returns true if this resource has an associated "validated" marker
-     * file.
+     * Returns true if this resource has been marked as valid (and, if its validity is tracked via
+     * a ledger, is unchanged since then).
      */
     public boolean isMarkedValid ()
     {
+        if (_ledger != null) {
+            return _ledger.isValid(this);
+        }
         if (!_local.exists()) {
             clearMarker();
             return false;
@@ -254,24 +537,29 @@ public class Resource implements Comparable<Resource>
     }
 
     /**
-     * Creates a "validated" marker file for this resource to indicate
-     * that its MD5 hash has been computed and compared with the value in
-     * the digest file.
+     * Marks this resource as valid (via its ledger or a "validated" marker file) to indicate
+     * that its hash has been computed and compared with the value in the digest file.
      *
      * @throws IOException if we fail to create the marker file.
      */
     public void markAsValid ()
         throws IOException
     {
-        _marker.createNewFile();
+        if (_ledger != null) {
+            _ledger.markValid(this);
+        } else {
+            _marker.createNewFile();
+        }
     }
 
     /**
-     * Removes any "validated" marker file associated with this resource.
+     * Clears any indication that this resource is valid.
      */
     public void clearMarker ()
     {
-        if (_marker.exists() && !FileUtil.deleteHarder(_marker)) {
+        if (_ledger != null) {
+            _ledger.remove(this);
+        } else if (_marker.exists() && !FileUtil.deleteHarder(_marker)) {
             log.warning("Failed to erase marker file '" + _marker + "'.");
         }
     }
@@ -301,11 +589,93 @@ public class Resource implements Comparable<Resource>
         if (!_isZip) {
             throw new IOException("Requested to unpack non-jar file '" + _local + "'.");
         }
+        File manifest = getUnpackManifest();
+        if (!_incrementalUnpack && manifest.exists() && !FileUtil.deleteHarder(manifest)) {
+            log.warning("Failed to delete unpack manifest", "file", manifest);
+        }
+        boolean clean = _attrs.contains(Attr.CLEAN);
         try (ZipFile jar = new ZipFile(_local)) {
-            FileUtil.unpackJar(jar, _unpacked, _attrs.contains(Attr.CLEAN));
+            if (!commitStaged(jar, clean, _incrementalUnpack ? manifest : null)) {
+                FileUtil.unpackJar(jar, _unpacked, clean, _incrementalUnpack ? manifest : null);
+            }
         }
     }
 
+    /**
+     * Returns the directory into which this resource is extracted as it is downloaded, when it is
+     * unpacked as it is downloaded.
+     */
+    public File getStagingDir ()
+    {
+        return new File(_local.getPath() + "_staged");
+    }
+
+    /**
+     * Notes that this resource's {@code _new} file has been extracted in full into its {@link
+     * #getStagingDir} and found to match its digest, such that the staged files can be moved into
+     * place when the {@code _new} file is installed, rather than extracted anew.
+     */
+    public void noteStaged ()
+        throws IOException
+    {
+        Files.write(getStagingStamp().toPath(), stagingStamp(_localNew).getBytes(UTF_8));
+    }
+
+    /**
+     * Moves this resource's staged files into place, if they were staged from its current local
+     * file. Discards any staged files regardless.
+     * @return true if the staged files were committed, false if the resource must be unpacked.
+     */
+    protected boolean commitStaged (ZipFile jar, boolean clean, File manifest)
+        throws IOException
+    {
+        File staging = getStagingDir(), stamp = getStagingStamp();
+        boolean committed = false;
+        if (stamp.exists()) {
+            String staged = new String(Files.readAllBytes(stamp.toPath()), UTF_8);
+            // never commit the same staged files twice (nor partially committed files)
+            if (!FileUtil.deleteHarder(stamp)) {
+                log.warning("Failed to delete staging stamp", "file", stamp);
+            } else if (staged.equals(stagingStamp(_local))) {
+                committed = FileUtil.commitStagedJar(jar, staging, _unpacked, clean, manifest);
+            }
+        }
+        if (staging.exists()) {
+            FileUtil.deleteDirHarder(staging);
+        }
+        return committed;
+    }
+
+    protected File getStagingStamp ()
+    {
+        return new File(_local.getPath() + "_staged.stamp");
+    }
+
+    /** Identifies the file from which files were staged. Installing a resource renames its
+      * {@code _new} file into place, which preserves the file's size and modification time. */
+    protected static String stagingStamp (File file)
+    {
+        return file.length() + " " + file.lastModified();
+    }
+
+    /**
+     * Configures this resource to be unpacked incrementally: only the entries that changed since
+     * it was last unpacked are written, and the files of entries that were removed are deleted.
+     */
+    public void setIncrementalUnpack (boolean incremental)
+    {
+        _incrementalUnpack = incremental;
+    }
+
+    /**
+     * Returns the file which records the entries unpacked from this resource, when it is unpacked
+     * incrementally.
+     */
+    public File getUnpackManifest ()
+    {
+        return new File(_local.getPath() + "u");
+    }
+
     /**
      * Applies this resources special attributes: unpacks this resource if needed, marks it as
      * executable if needed.
@@ -331,6 +701,15 @@ public class Resource implements Comparable<Resource>
         }
     }
 
+    /**
+     * Returns the "validated" marker file for this resource (which is only used if this resource
+     * has no ledger).
+     */
+    protected File getMarker ()
+    {
+        return _marker;
+    }
+
     @Override public int compareTo (Resource other) {
         return _path.compareTo(other._path);
     }
@@ -367,7 +746,9 @@ public class Resource implements Comparable<Resource>
     protected final File _local;
     protected final File _localNew;
     protected final File _marker;
+    protected final ValidationLedger _ledger;
     protected File _unpacked;
+    protected boolean _incrementalUnpack;
     protected final EnumSet<Attr> _attrs;
     protected final boolean _isZip;
 
@@ -378,5 +759,28 @@ public class Resource implements Comparable<Resource>
         }
     };
 
-    protected static final int DIGEST_BUFFER_SIZE = 5 * 1025;
+    protected static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    /** Files at least this large are hashed via a direct buffer rather than a heap buffer. Smaller
+      * files showed no measurable benefit. */
+    protected static final long DIRECT_DIGEST_THRESHOLD = 1024 * 1024;
+
+    /** The size of the direct buffer used to hash large files. */
+    protected static final int DIRECT_DIGEST_BUFFER_SIZE = 1024 * 1024;
+
+    /** Files at least this large are hashed in parallel when using BLAKE3 (version 4). */
+    protected static final long PARALLEL_FILE_DIGEST_SIZE = 8 * 1024 * 1024;
+
+    /** Zip entries totalling more than this many (uncompressed) bytes are hashed in parallel. */
+    protected static final long PARALLEL_DIGEST_SIZE = 1024 * 1024;
+
+    /** The pool on which zip entries and large files are hashed, created on demand. */
+    protected static ForkJoinPool _digestPool;
+
+    /** Each thread's direct buffer for hashing large files, see {@link #directBuffer}. */
+    protected static final ThreadLocal<ByteBuffer> _directBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override protected ByteBuffer initialValue () {
+            return ByteBuffer.allocateDirect(DIRECT_DIGEST_BUFFER_SIZE);
+        }
+    };
 }
@@ -135,6 +135,44 @@ public final class SysProps
         return Integer.getInteger("read_timeout", 30);
     }
 
+    /** Limits the rate (in bytes per second) at which resources are downloaded when updating
+      * interactively, overriding {@code max_download_rate} in {@code getdown.txt}. Zero disables
+      * rate limiting. Usage: {@code -Ddownload_rate_limit=N}. */
+    public static long downloadRateLimit () {
+        return Long.getLong("download_rate_limit", -1L);
+    }
+
+    /** Limits the rate (in bytes per second) at which resources are downloaded when updating
+      * silently or after a start delay, overriding {@code max_background_download_rate} in
+      * {@code getdown.txt}. Zero disables rate limiting.
+      * Usage: {@code -Dbackground_download_rate_limit=N}. */
+    public static long backgroundDownloadRateLimit () {
+        return Long.getLong("background_download_rate_limit", -1L);
+    }
+
+    /** Returns the maximum number of idle HTTP connections retained (per host) for reuse. By
+      * default this is the default number of concurrent downloads ({@link #threadPoolSize}), so
+      * that each download thread can reuse its connection rather than reconnecting for every
+      * file. As the JVM reads its connection pool configuration when it
+      * makes its first connection (before {@code getdown.txt} can have been read), this can only
+      * be configured via a system property. Usage: {@code -Dhttp_max_connections=N}. */
+    public static int httpMaxConnections () {
+        return Math.max(0, Integer.getInteger("http_max_connections", threadPoolSize()));
+    }
+
+    /** Returns the number of seconds for which an idle HTTP connection is retained for reuse, or
+      * {@code 0} to use the JVM's default. Like {@link #httpMaxConnections}, this can only be
+      * configured via a system property. Usage: {@code -Dhttp_idle_timeout=N}. */
+    public static int httpIdleTimeout () {
+        return Math.max(0, Integer.getInteger("http_idle_timeout", 0));
+    }
+
+    /** If true, Getdown always hashes resources when verifying them, rather than trusting the
+      * digests it has cached for unchanged files. Usage: {@code -Dparanoid_verify}. */
+    public static boolean paranoidVerify () {
+        return System.getProperty("paranoid_verify") != null;
+    }
+
     /** Returns the number of threads used to perform digesting and verifying operations in
       * parallel. Usage: {@code -Dthread_pool_size=N} */
     public static int threadPoolSize () {
@@ -142,6 +180,14 @@ public final class SysProps
         return Integer.getInteger("thread_pool_size", defaultSize);
     }
 
+    /** Returns the number of threads used to unpack resources in parallel. Unpacking is mostly
+      * I/O bound, so these threads are separate from (and fewer than) those which verify
+      * resources. Usage: {@code -Dunpack_pool_size=N} */
+    public static int unpackPoolSize () {
+        int defaultSize = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+        return Math.max(1, Integer.getInteger("unpack_pool_size", defaultSize));
+    }
+
     /** Parses a Java version system property using the supplied regular expression. The numbers
       * extracted from the regexp will be placed in each consecutive hundreds position in the
       * returned value.
@@ -0,0 +1,187 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.threerings.getdown.util.FileUtil;
+
+import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Records which resources have been validated, along with the identity (size, modification time
+ * and file key) of each resource's file when it was validated and the digest protocol version via
+ * which it was validated. This replaces the per-resource {@code v} marker files used by earlier
+ * versions of Getdown: validity is checked in memory (plus one stat of the resource's file) and
+ * the ledger is written, in one fell swoop, only when it has changed.
+ */
+public class ValidationLedger
+{
+    /**
+     * Creates a ledger which is stored in (and loaded from, if it exists) {@code file}.
+     */
+    public ValidationLedger (File file)
+    {
+        _file = file;
+        _legacy = !file.exists();
+        load();
+    }
+
+    /**
+     * Sets the version of the digest protocol via which resources are being validated. Resources
+     * validated via a different version are no longer considered valid.
+     */
+    public void setDigestVersion (int version)
+    {
+        _version = version;
+    }
+
+    /**
+     * Returns true if {@code rsrc} has been validated (via the current digest protocol version)
+     * and its file is unchanged since then.
+     */
+    public boolean isValid (Resource rsrc)
+    {
+        Entry entry = _entries.get(rsrc.getPath());
+        if (entry != null) {
+            DigestCache.Stat stat = DigestCache.stat(rsrc.getLocal());
+            if (entry.version == _version && stat != null && entry.stat.equals(stat)) {
+                return true;
+            }
+            remove(rsrc);
+            return false;
+        }
+
+        // if we're running for the first time since switching from marker files, adopt the
+        // resource's marker file (if any)
+        if (_legacy) {
+            File marker = rsrc.getMarker();
+            if (marker.exists()) {
+                deleteMarker(marker);
+                if (rsrc.getLocal().exists()) {
+                    markValid(rsrc);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notes that {@code rsrc} has been validated.
+     */
+    public void markValid (Resource rsrc)
+    {
+        DigestCache.Stat stat = DigestCache.stat(rsrc.getLocal());
+        if (stat == null) {
+            remove(rsrc);
+        } else {
+            _entries.put(rsrc.getPath(), new Entry(stat, _version));
+            _dirty = true;
+        }
+    }
+
+    /**
+     * Notes that {@code rsrc} must be validated anew.
+     */
+    public void remove (Resource rsrc)
+    {
+        if (_entries.remove(rsrc.getPath()) != null) {
+            _dirty = true;
+        }
+        if (_legacy) {
+            File marker = rsrc.getMarker();
+            if (marker.exists()) {
+                deleteMarker(marker);
+            }
+        }
+    }
+
+    /**
+     * Writes this ledger to disk, if it has changed since it was loaded or last saved.
+     */
+    public synchronized void save ()
+    {
+        if (!_dirty) return;
+        _dirty = false;
+        File temp = new File(_file.getPath() + "_new");
+        try (PrintWriter out = new PrintWriter(
+                 new OutputStreamWriter(new FileOutputStream(temp), UTF_8))) {
+            out.println(HEADER);
+            for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+                Entry e = entry.getValue();
+                out.println(e.stat.size + "\t" + e.stat.lastModified + "\t" + e.stat.fileKey +
+                            "\t" + e.version + "\t" + entry.getKey());
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to write validation ledger", "file", temp, "error", ioe);
+            _dirty = true;
+            return;
+        }
+        // replace the old ledger atomically so that we never leave a partial ledger behind
+        if (!FileUtil.renameTo(temp, _file)) {
+            log.warning("Failed to replace validation ledger", "file", _file);
+            _dirty = true;
+        }
+    }
+
+    protected void load ()
+    {
+        if (!_file.exists()) return;
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(_file), UTF_8))) {
+            if (!HEADER.equals(in.readLine())) {
+                log.info("Ignoring validation ledger with unknown format", "file", _file);
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] bits = line.split("\t", 5);
+                if (bits.length != 5) continue;
+                DigestCache.Stat stat = new DigestCache.Stat(
+                    Long.parseLong(bits[0]), Long.parseLong(bits[1]), bits[2]);
+                _entries.put(bits[4], new Entry(stat, Integer.parseInt(bits[3])));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // an unreadable ledger just means that everything will be validated anew
+            log.warning("Failed to read validation ledger", "file", _file, "error", e);
+            _entries.clear();
+        }
+    }
+
+    protected static void deleteMarker (File marker)
+    {
+        if (!FileUtil.deleteHarder(marker)) {
+            log.warning("Failed to erase marker file '" + marker + "'.");
+        }
+    }
+
+    protected static final class Entry
+    {
+        public final DigestCache.Stat stat;
+        public final int version;
+
+        public Entry (DigestCache.Stat stat, int version) {
+            this.stat = stat;
+            this.version = version;
+        }
+    }
+
+    protected final File _file;
+    protected final Map<String, Entry> _entries = new ConcurrentHashMap<>();
+    protected volatile boolean _dirty;
+    protected volatile int _version = Digest.VERSION;
+
+    /** Whether no ledger existed when we were created, in which case we adopt (and delete) any
+      * marker files left by an earlier version of Getdown. */
+    protected final boolean _legacy;
+
+    /** The first line of a ledger file, which identifies its format. */
+    protected static final String HEADER = "# getdown validation ledger 1";
+}
@@ -0,0 +1,166 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Limits the number of concurrent transfers, adjusting the limit based on measured throughput and
+ * latency in the manner of AIMD congestion control: while the link shows no sign of congestion,
+ * the limit is raised by one transfer per sample window; when throughput drops or the latency of
+ * new transfers balloons, the limit is halved. The limit never exceeds a configured ceiling.
+ *
+ * <p>{@link #noteBytes} is called by every transfer for every buffer it reads, so it takes no
+ * lock: bytes are accumulated in an atomic counter, and the limit is reevaluated only when a
+ * sample window ends, by whichever thread first notices that it has.
+ */
+public class ConcurrencyController
+{
+    /**
+     * Creates a controller which allows {@code initial} concurrent transfers to start with, and
+     * never more than {@code ceiling}.
+     */
+    public ConcurrencyController (int initial, int ceiling)
+    {
+        _ceiling = Math.max(1, ceiling);
+        _limit = Math.max(1, Math.min(initial, _ceiling));
+    }
+
+    /**
+     * Returns the current limit on concurrent transfers.
+     */
+    public synchronized int limit ()
+    {
+        return _limit;
+    }
+
+    /**
+     * Blocks until the number of in-progress transfers is below the current limit, then notes the
+     * start of a new transfer. Each call must be paired with a call to {@link #release}.
+     */
+    public synchronized void acquire () throws InterruptedException
+    {
+        while (_active >= _limit) {
+            wait();
+        }
+        _active++;
+    }
+
+    /**
+     * Notes the completion (successful or otherwise) of a transfer.
+     */
+    public synchronized void release ()
+    {
+        _active--;
+        notifyAll();
+    }
+
+    /**
+     * Notes that {@code bytes} bytes were transferred at time {@code now} (in millis).
+     */
+    public void noteBytes (long bytes, long now)
+    {
+        _bytes.addAndGet(bytes);
+        maybeAdjust(now);
+    }
+
+    /**
+     * Notes that a transfer waited {@code millis} milliseconds for the server to respond to its
+     * request at time {@code now} (in millis).
+     */
+    public void noteLatency (long millis, long now)
+    {
+        synchronized (this) {
+            _latencySum += millis;
+            _latencyCount++;
+            _minLatency = Math.min(_minLatency, millis);
+        }
+        maybeAdjust(now);
+    }
+
+    /**
+     * Ends the current sample window and adjusts our limit if {@link #WINDOW} millis have elapsed
+     * since the window began. Only the thread which claims the end of the window (by advancing
+     * its start) adjusts the limit.
+     */
+    protected void maybeAdjust (long now)
+    {
+        long start = _windowStart.get();
+        if (start == 0L) {
+            _windowStart.compareAndSet(0L, now);
+            return;
+        }
+        long elapsed = now - start;
+        if (elapsed >= WINDOW && _windowStart.compareAndSet(start, now)) {
+            adjust(elapsed);
+        }
+    }
+
+    /**
+     * Adjusts our limit based on the samples taken during the window just ended, which lasted
+     * {@code elapsed} millis, and starts a new window.
+     */
+    protected synchronized void adjust (long elapsed)
+    {
+        long bytes = _bytes.getAndSet(0L);
+        long throughput = bytes * 1000L / elapsed;
+        long latency = (_latencyCount == 0) ? -1L : _latencySum / _latencyCount;
+        // throughput naturally falls off as the last transfers complete, so a drop only signals
+        // congestion if we're running as many transfers as we're allowed
+        boolean saturated = _active >= _limit;
+        boolean congested = (saturated && throughput < _lastThroughput * DROP_FACTOR) ||
+            (latency >= 0 && latency > _minLatency * LATENCY_FACTOR + LATENCY_SLOP);
+
+        int limit = _limit;
+        if (congested) {
+            limit = Math.max(1, limit / 2);
+        } else if (saturated && bytes > 0 && _lastThroughput > 0) {
+            // only probe for more capacity if we're actually making use of what we have, and have
+            // a baseline (which we lack initially and just after a decrease) against which to
+            // measure the result
+            limit = Math.min(_ceiling, limit + 1);
+        }
+        if (limit != _limit) {
+            log.info("Adjusting download concurrency", "from", _limit, "to", limit,
+                     "bytesPerSec", throughput, "latency", latency, "minLatency", _minLatency);
+            _limit = limit;
+            notifyAll();
+        }
+
+        // a drop in throughput following a decrease is expected, so don't treat it as congestion
+        _lastThroughput = congested ? 0L : throughput;
+        _latencySum = 0L;
+        _latencyCount = 0;
+    }
+
+    protected final int _ceiling;
+    protected int _limit, _active;
+
+    /** The time at which the current sample window began, or {@code 0} before the first sample. */
+    protected final AtomicLong _windowStart = new AtomicLong();
+
+    /** The bytes transferred during the current sample window. */
+    protected final AtomicLong _bytes = new AtomicLong();
+
+    protected long _lastThroughput;
+    protected long _latencySum, _minLatency = Long.MAX_VALUE;
+    protected int _latencyCount;
+
+    /** The duration of a sample window, in millis. */
+    protected static final long WINDOW = 1000L;
+
+    /** A drop in throughput to below this fraction of the previous window's signals congestion. */
+    protected static final double DROP_FACTOR = 0.75;
+
+    /** Request latency above this multiple of the minimum observed latency signals congestion. */
+    protected static final long LATENCY_FACTOR = 3;
+
+    /** Added to the latency threshold so that jitter on very fast links is not mistaken for
+      * congestion. */
+    protected static final long LATENCY_SLOP = 50L;
+}
@@ -16,9 +16,12 @@ import java.net.Proxy;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ServiceLoader;
 import java.util.zip.GZIPInputStream;
 
+import static com.threerings.getdown.Log.log;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.threerings.getdown.data.SysProps;
@@ -55,6 +58,23 @@ public class Connector {
         this.proxy = proxy;
     }
 
+    /**
+     * Returns the transport via which all connections are made. This is the first {@link Transport}
+     * registered with {@link ServiceLoader}, or {@link URLConnectionTransport} if none is. The
+     * transport's connection pool is configured (see {@link SysProps#httpMaxConnections} and
+     * {@link SysProps#httpIdleTimeout}) when it is created, before any connection is made.
+     */
+    public static synchronized Transport transport ()
+    {
+        if (_transport == null) {
+            Iterator<Transport> iter = ServiceLoader.load(Transport.class).iterator();
+            _transport = iter.hasNext() ? iter.next() : new URLConnectionTransport();
+            log.info("Using transport", "impl", _transport.getClass().getName());
+            _transport.configure(SysProps.httpMaxConnections(), SysProps.httpIdleTimeout());
+        }
+        return _transport;
+    }
+
     /**
      * Opens a connection to a URL, setting the authentication header if user info is present.
      * @param url the URL to which to open a connection.
@@ -68,12 +88,7 @@ public class Connector {
     public URLConnection open (URL url, int connectTimeout, int readTimeout)
         throws IOException
     {
-        URLConnection conn;
-        if (proxy == null) {
-            conn = url.openConnection();
-        } else {
-            conn = url.openConnection(proxy);
-        }
+        URLConnection conn = transport().open(url, proxy);
 
         // configure a connect timeout, if requested
         int ctimeout = connectTimeout > 0 ? connectTimeout : SysProps.connectTimeout();
@@ -113,9 +128,45 @@ public class Connector {
     }
 
     /**
-     * Downloads {@code url} into {@code target}.
+     * Returns the mirrors via which failed downloads are retried.
+     */
+    public Mirrors mirrors () {
+        return _mirrors;
+    }
+
+    /**
+     * Configures the mirrors via which failed downloads are retried.
+     */
+    public void setMirrors (Mirrors mirrors) {
+        _mirrors = mirrors;
+    }
+
+    /**
+     * Downloads {@code url} into {@code target}. If the download fails and {@code url} refers to
+     * one of our {@link #mirrors}, the download is retried from each of the other mirrors in turn.
      */
     public void download (URL url, File target) throws IOException {
+        try {
+            downloadFrom(url, target);
+        } catch (IOException ioe) {
+            for (URL alt : _mirrors.alternates(url)) {
+                log.warning("Download failed, trying mirror", "url", url, "mirror", alt,
+                            "error", ioe);
+                try {
+                    downloadFrom(alt, target);
+                    return;
+                } catch (IOException mioe) {
+                    ioe = mioe;
+                }
+            }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Downloads {@code url} into {@code target}, without failover.
+     */
+    protected void downloadFrom (URL url, File target) throws IOException {
         URLConnection conn = open(url, 0, 0);
         // we have to tell Java not to use caches here, otherwise it will cache any request for
         // same URL for the lifetime of this JVM (based on the URL string, not the URL object);
@@ -158,10 +209,51 @@ public class Connector {
     public void checkConnectOK (URLConnection conn, String errpre) throws IOException {
         int code = checkConnectStatus(conn);
         if (code != HttpURLConnection.HTTP_OK) {
+            release(conn);
             throw new IOException(errpre + " [code=" + code + "]");
         }
     }
 
+    /**
+     * Discards any unread response to an HTTP request which failed (or whose response is not
+     * wanted), so that the underlying connection can be reused for subsequent requests. If the
+     * response is large, the connection is simply closed.
+     */
+    public void release (URLConnection conn)
+    {
+        if (!(conn instanceof HttpURLConnection)) {
+            try {
+                conn.getInputStream().close();
+            } catch (IOException ioe) {
+                // nothing to release
+            }
+            return;
+        }
+        HttpURLConnection hconn = (HttpURLConnection)conn;
+        try {
+            InputStream in = hconn.getErrorStream();
+            if (in == null) {
+                in = hconn.getInputStream();
+            }
+            try {
+                byte[] buffer = new byte[4096];
+                long drained = 0L;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if ((drained += read) > MAX_DRAIN) {
+                        hconn.disconnect();
+                        break;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            // the connection is unusable anyway, so make sure it's closed
+            hconn.disconnect();
+        }
+    }
+
     /**
      * Returns the connection status of {@code conn}. If the connection failed for proxy related
      * reasons, this changes the state of this connector to reflect the needed proxy information.
@@ -198,4 +290,13 @@ public class Connector {
             args.add("-Dhttps.proxyPort=" + proxyPort);
         }
     }
+
+    /** The mirrors via which failed downloads are retried. */
+    protected volatile Mirrors _mirrors = Mirrors.NONE;
+
+    /** The transport used to open all connections. Resolved on first use. */
+    protected static Transport _transport;
+
+    /** The maximum number of bytes of an unwanted response we'll read to reuse a connection. */
+    protected static final long MAX_DRAIN = 64 * 1024L;
 }
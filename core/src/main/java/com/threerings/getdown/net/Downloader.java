@@ -6,31 +6,53 @@
 package com.threerings.getdown.net;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import com.threerings.getdown.data.Digest;
 import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.StringUtil;
 
 import static com.threerings.getdown.Log.log;
 
 /**
- * Handles the download of a collection of files, first issuing HTTP head requests to obtain size
- * information and then downloading the files individually, reporting progress back via protected
- * callback methods. <em>Note:</em> these methods are all called arbitrary download threads, so
- * implementors must take care to only execute thread-safe code or simply pass a message to the AWT
- * thread, for example.
+ * Handles the download of a collection of files, downloading the files individually (issuing HTTP
+ * head requests to obtain size information only where needed) and reporting progress back via
+ * protected callback methods. <em>Note:</em> these methods are all called arbitrary download
+ * threads, so implementors must take care to only execute thread-safe code or simply pass a
+ * message to the AWT thread, for example.
  */
 public class Downloader
 {
@@ -47,41 +69,146 @@ public class Downloader
      */
     public boolean download (Collection<Resource> resources, int maxConcurrent)
     {
-        // first compute the total size of our download
-        resolvingDownloads();
+        // first compute the total size of our download: we use the sizes we already know and
+        // probe (in parallel) for the rest, as we order our downloads and weight our progress by
+        // size; sizes we fail to determine are estimated and learned when their downloads begin
+        List<Resource> unsized = new ArrayList<>();
         for (Resource rsrc : resources) {
-            try {
-                _sizes.put(rsrc, Math.max(checkSize(rsrc), 0L));
-            } catch (IOException ioe) {
-                downloadFailed(rsrc, ioe);
+            // resources whose local copies are only partly damaged need only have the damaged
+            // parts downloaded again
+            Repair repair = rsrc.getRemote().getProtocol().startsWith("http") ?
+                repairFor(rsrc) : null;
+            if (repair != null) {
+                _repairs.put(rsrc, repair);
+                _sizes.put(rsrc, repair.bytes());
+                continue;
+            }
+            long size = expectedSize(rsrc);
+            if (size >= 0) {
+                _sizes.put(rsrc, size);
+            } else {
+                unsized.add(rsrc);
+            }
+        }
+        // (the size of a lone resource matters only if we might download it in segments)
+        if (unsized.size() > 1 || (!unsized.isEmpty() && _segmentThreshold > 0)) {
+            resolvingDownloads();
+            probeSizes(unsized, maxConcurrent);
+        }
+        long estimate = _sizes.isEmpty() ? UNKNOWN_SIZE_ESTIMATE :
+            sum(_sizes.values()) / _sizes.size();
+        Set<Resource> estimated = new HashSet<>();
+        for (Resource rsrc : unsized) {
+            if (!_sizes.containsKey(rsrc)) {
+                _sizes.put(rsrc, estimate);
+                estimated.add(rsrc);
             }
         }
 
-        long totalSize = sum(_sizes.values());
+        // set up the counters via which we track progress
+        initProgress(resources, estimated);
+
+        long totalSize = _totalSize.get();
         log.info("Downloading " + resources.size() + " resources",
-                 "totalBytes", totalSize, "maxConcurrent", maxConcurrent);
+                 "totalBytes", totalSize, "estimated", estimated.size(),
+                 "maxConcurrent", maxConcurrent);
 
         // make a note of the time at which we started the download
         _start = System.currentTimeMillis();
 
+        // if we're adapting our concurrency, we start small and let the controller work its way
+        // up toward the configured maximum
+        if (_adaptive) {
+            _concurrency = new ConcurrencyController(
+                Math.min(ADAPTIVE_INITIAL_CONCURRENCY, maxConcurrent), maxConcurrent);
+        }
+
+        // order our downloads by priority, and smallest first within a priority; our thread pool
+        // starts downloads in the order they're submitted, so the resources needed to launch
+        // arrive first
+        final Map<Resource, Integer> prios = new HashMap<>();
+        for (Resource rsrc : resources) {
+            int prio = downloadPriority(rsrc);
+            prios.put(rsrc, prio);
+            if (prio == 0) {
+                _codePending.incrementAndGet();
+            }
+        }
+        List<Resource> ordered = new ArrayList<>(resources);
+        Collections.sort(ordered, new Comparator<Resource>() {
+            @Override public int compare (Resource r1, Resource r2) {
+                int cmp = Integer.compare(prios.get(r1), prios.get(r2));
+                return (cmp != 0) ? cmp : Long.compare(_sizes.get(r1), _sizes.get(r2));
+            }
+        });
+
         // start the downloads
         ExecutorService exec = Executors.newFixedThreadPool(maxConcurrent);
-        for (final Resource rsrc : resources) {
+        for (final Resource rsrc : ordered) {
+            final boolean critical = (prios.get(rsrc) == 0);
             // make sure the resource's target directory exists
             File parent = new File(rsrc.getLocal().getParent());
             if (!parent.exists() && !parent.mkdirs()) {
                 log.warning("Failed to create target directory for resource '" + rsrc + "'.");
             }
 
+            // large resources are split into byte ranges which are downloaded in parallel, as are
+            // the damaged ranges of resources that we're repairing (we can't split a resource
+            // whose size is only an estimate)
+            Long size = _sizes.get(rsrc);
+            Repair repair = _repairs.get(rsrc);
+            if (repair != null ||
+                (size != null && !estimated.contains(rsrc) && shouldSegment(rsrc, size))) {
+                final Segments segs;
+                try {
+                    segs = (repair != null) ? new Segments(rsrc, repair, critical) :
+                        new Segments(rsrc, size, _segments, critical);
+                } catch (IOException ioe) {
+                    _state = State.FAILED;
+                    downloadFailed(rsrc, ioe);
+                    continue;
+                }
+                if (repair != null) {
+                    log.info("Repairing damaged resource", "url", rsrc.getRemote(),
+                             "size", segs.size, "ranges", segs.count, "bytes", segs.total);
+                } else {
+                    log.info("Downloading resource in segments", "url", rsrc.getRemote(),
+                             "size", size, "segments", segs.count);
+                }
+                for (int ii = 0; ii < segs.count; ii++) {
+                    final int segment = ii;
+                    exec.execute(new Runnable() {
+                        @Override public void run () {
+                            boolean acquired = acquireSlot();
+                            try {
+                                if (acquired && _state != State.ABORTED) {
+                                    downloadSegment(segs, segment);
+                                }
+                            } catch (IOException ioe) {
+                                segs.failed(ioe);
+                            } finally {
+                                if (acquired) releaseSlot();
+                                segs.segmentDone();
+                            }
+                        }
+                    });
+                }
+                continue;
+            }
+
             exec.execute(new Runnable() {
                 @Override public void run () {
+                    boolean acquired = acquireSlot();
                     try {
-                        if (_state != State.ABORTED) {
+                        if (acquired && _state != State.ABORTED) {
                             download(rsrc);
+                            if (critical) criticalDownloaded();
                         }
                     } catch (IOException ioe) {
                         _state = State.FAILED;
                         downloadFailed(rsrc, ioe);
+                    } finally {
+                        if (acquired) releaseSlot();
                     }
                 }
             });
@@ -96,6 +223,10 @@ public class Downloader
             if (_state == State.DOWNLOADING) {
                 downloadProgress(100, 0);
             }
+            if (_concurrency != null) {
+                log.info("Adaptive download concurrency", "final", _concurrency.limit(),
+                         "max", maxConcurrent);
+            }
 
         } catch (InterruptedException ie) {
             exec.shutdownNow();
@@ -112,12 +243,78 @@ public class Downloader
         _state = State.ABORTED;
     }
 
+    /**
+     * Configures whether interrupted downloads are resumed. When enabled, the progress of each
+     * download is recorded next to its {@code _new} file (see {@link PartialDownload}), and a
+     * subsequent attempt to download the same resource will request only the missing bytes.
+     */
+    public void setResume (boolean resume) {
+        _resume = resume;
+    }
+
+    /**
+     * Configures segmented downloading. Resources whose size is at least {@code threshold} bytes
+     * will be split into {@code segments} byte ranges which are downloaded concurrently (subject
+     * to the overall concurrent download limit).
+     *
+     * @param threshold the minimum size of a segmented resource, or {@code 0} to disable
+     * segmented downloading.
+     * @param segments the number of segments into which to split a large resource.
+     */
+    public void setSegmentation (long threshold, int segments) {
+        _segmentThreshold = threshold;
+        _segments = segments;
+    }
+
+    /**
+     * Limits the aggregate rate at which all download threads transfer data.
+     * @param bytesPerSecond the maximum rate, or {@code 0} for no limit.
+     */
+    public void setRateLimit (long bytesPerSecond) {
+        _limiter = (bytesPerSecond > 0) ? new RateLimiter(bytesPerSecond) : null;
+    }
+
+    /**
+     * Configures whether the number of concurrent downloads is adapted to the measured throughput
+     * and latency of the connection (see {@link ConcurrencyController}). When enabled, the maximum
+     * supplied to {@link #download(Collection,int)} serves as a ceiling.
+     */
+    public void setAdaptive (boolean adaptive) {
+        _adaptive = adaptive;
+    }
+
     /**
      * Called before the downloader begins the series of HTTP head requests to determine the
-     * size of the files it needs to download.
+     * size of the files it needs to download. This is only called if such requests are needed.
      */
     protected void resolvingDownloads () {}
 
+    /**
+     * Returns the priority with which {@code rsrc} should be downloaded. Resources with lower
+     * values are started first (and within a priority, smaller resources are started first).
+     * Resources with priority {@code 0} are considered critical to launching the application,
+     * and {@link #codeReady} is called when they have all been downloaded.
+     */
+    protected int downloadPriority (Resource rsrc) {
+        return 0;
+    }
+
+    /**
+     * Called when all resources with priority {@code 0} (see {@link #downloadPriority}) have been
+     * downloaded, which may be well before the entire download completes. This is not called if
+     * there were no such resources, or if any of them failed to download.
+     */
+    protected void codeReady () {}
+
+    /**
+     * Returns the size of {@code rsrc} if it is known in advance (from application metadata, for
+     * example), or {@code -1} if it is not. The sizes of resources whose sizes are unknown are
+     * determined via {@link #checkSize} before downloading begins.
+     */
+    protected long expectedSize (Resource rsrc) {
+        return -1L;
+    }
+
     /**
      * Reports ongoing progress toward completion of the overall downloading task. One call is
      * guaranteed to be made reporting 100% completion if the download is not aborted and no
@@ -145,8 +342,55 @@ public class Downloader
      */
     protected void resourceMissing (Resource rsrc) {}
 
+    /**
+     * Returns the digest that {@code rsrc} is expected to have once downloaded, or null if it is
+     * not known. If a digest is supplied, the resource will be hashed as it is downloaded and
+     * {@link #downloadVerified} will be called if the downloaded data matches. Only plain (non-zip)
+     * resources, and zip resources that are extracted as they're downloaded (see {@link
+     * #stagingDirFor}), that are not downloaded in segments are hashed in this way.
+     */
+    protected String expectedDigest (Resource rsrc) {
+        return null;
+    }
+
+    /**
+     * Returns a description of the damaged portions of {@code rsrc}'s existing local copy if only
+     * those portions need be downloaded, or null if the whole resource should be downloaded.
+     * This is only called for resources served via HTTP.
+     */
+    protected Repair repairFor (Resource rsrc) {
+        return null;
+    }
+
+    /**
+     * Returns the version of the digest protocol via which the digests returned by
+     * {@link #expectedDigest} were computed.
+     */
+    protected int digestVersion () {
+        return Digest.VERSION;
+    }
+
+    /**
+     * Called when a resource has been downloaded and its contents found to match the digest
+     * returned by {@link #expectedDigest}.
+     */
+    protected void downloadVerified (Resource rsrc) {}
+
+    /**
+     * Returns the directory into which to extract {@code rsrc}, a zip file that is to be
+     * unpacked, as it is downloaded, or null if it should not be extracted until it's installed.
+     * The extracted files are kept only if they match the digest returned by {@link
+     * #expectedDigest} (which must be computed via version 3 or newer of the digest protocol), in
+     * which case {@link #downloadVerified} is called. Resources downloaded in segments, or whose
+     * download is resumed, are not extracted in this way.
+     */
+    protected File stagingDirFor (Resource rsrc) {
+        return null;
+    }
+
     /**
      * Performs the protocol-specific portion of checking download size.
+     * @return the size of the resource, or {@code -1} if it could not be determined.
      */
     protected long checkSize (Resource rsrc) throws IOException {
         URLConnection conn = _conn.open(rsrc.getRemote(), 0, 0);
@@ -158,11 +402,117 @@ public class Downloader
             // if we get a satisfactory response code, return a size; ignore errors as we'll report
             // those when we actually attempt to download the resource
             int code = _conn.checkConnectStatus(conn);
-            return code == HttpURLConnection.HTTP_OK ? conn.getContentLength() : 0;
+            return code == HttpURLConnection.HTTP_OK ? conn.getContentLengthLong() : -1L;
 
         } finally {
-            // let it be known that we're done with this connection
-            conn.getInputStream().close();
+            // let it be known that we're done with this connection (so that it can be reused)
+            _conn.release(conn);
+        }
+    }
+
+    /**
+     * Determines the size of each of {@code rsrcs} via {@link #checkSize}, issuing up to
+     * {@code maxConcurrent} requests in parallel (over connections which are then reused by the
+     * downloads). Resources whose size could not be determined are left out of {@link #_sizes}.
+     */
+    protected void probeSizes (Collection<Resource> rsrcs, int maxConcurrent)
+    {
+        final Map<Resource, Long> sizes = new ConcurrentHashMap<>();
+        ExecutorService exec = Executors.newFixedThreadPool(maxConcurrent);
+        for (final Resource rsrc : rsrcs) {
+            exec.execute(new Runnable() {
+                @Override public void run () {
+                    try {
+                        long size = checkSize(rsrc);
+                        if (size >= 0) {
+                            sizes.put(rsrc, size);
+                        }
+                    } catch (IOException ioe) {
+                        // we'll report the failure if it recurs when we download the resource
+                        log.warning("Unable to determine resource size", "rsrc", rsrc,
+                                    "error", ioe);
+                    }
+                }
+            });
+        }
+        exec.shutdown();
+        try {
+            exec.awaitTermination(10, TimeUnit.DAYS);
+        } catch (InterruptedException ie) {
+            exec.shutdownNow();
+        }
+        _sizes.putAll(sizes);
+    }
+
+    /**
+     * Notes that a resource with priority {@code 0} was downloaded successfully.
+     */
+    protected void criticalDownloaded ()
+    {
+        if (_codePending.decrementAndGet() == 0 && _state == State.DOWNLOADING) {
+            codeReady();
+        }
+    }
+
+    /**
+     * Waits for permission to start a transfer from our concurrency controller, if we have one.
+     * @return true if permission was granted (in which case {@link #releaseSlot} must be called
+     * when the transfer completes), false if we were interrupted while waiting.
+     */
+    protected boolean acquireSlot ()
+    {
+        if (_concurrency == null) {
+            return true;
+        }
+        try {
+            _concurrency.acquire();
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Notes the completion of a transfer started after a call to {@link #acquireSlot}.
+     */
+    protected void releaseSlot ()
+    {
+        if (_concurrency != null) {
+            _concurrency.release();
+        }
+    }
+
+    /**
+     * Notes that we waited {@code millis} for a response to a download request.
+     */
+    protected void noteLatency (long millis)
+    {
+        if (_concurrency != null) {
+            _concurrency.noteLatency(millis, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Sets up the counters via which we track the progress of downloading {@code resources}, the
+     * sizes of which must be in {@link #_sizes}. The sizes of {@code estimated} are estimates.
+     */
+    protected void initProgress (Collection<Resource> resources, Set<Resource> estimated)
+    {
+        int count = resources.size(), idx = 0;
+        _rsrcSizes = new AtomicLongArray(count);
+        _rsrcDownloaded = new AtomicLongArray(count);
+        _estimated = new AtomicIntegerArray(count);
+        for (Resource rsrc : resources) {
+            long size = _sizes.get(rsrc);
+            _indices.put(rsrc, idx);
+            _rsrcSizes.set(idx, size);
+            _totalSize.addAndGet(size);
+            if (estimated.contains(rsrc)) {
+                _estimated.set(idx, 1);
+                _estimatedCount.incrementAndGet();
+            }
+            idx++;
         }
     }
 
@@ -179,24 +529,57 @@ public class Downloader
      * updated sizes here we can recover from receiving bogus information in the earlier
      * {@link #checkSize} phase.
      */
-    protected synchronized void reportProgress (Resource rsrc, long currentSize, long actualSize)
+    protected void reportProgress (Resource rsrc, long currentSize, long actualSize)
     {
-        // update the actual size for this resource (but don't let it shrink)
-        _sizes.put(rsrc, actualSize = Math.max(actualSize, _sizes.get(rsrc)));
+        // this is called from every download thread for every buffer read, so we avoid locking
+        // (and boxing) by tracking progress in per-resource atomic counters and running totals
+        Integer index = _indices.get(rsrc);
+        if (index == null) {
+            return;
+        }
+        int idx = index;
+
+        // update the actual size for this resource (but don't let it shrink, unless we were only
+        // working from an estimate)
+        long size;
+        if (actualSize >= 0 && _estimated.compareAndSet(idx, 1, 0)) {
+            long previous = _rsrcSizes.getAndSet(idx, actualSize);
+            _totalSize.addAndGet(actualSize - previous);
+            _estimatedCount.decrementAndGet();
+            size = actualSize;
+        } else {
+            while ((size = _rsrcSizes.get(idx)) < actualSize) {
+                if (_rsrcSizes.compareAndSet(idx, size, actualSize)) {
+                    _totalSize.addAndGet(actualSize - size);
+                    size = actualSize;
+                    break;
+                }
+            }
+        }
 
         // update the current downloaded size for said resource; don't allow the downloaded bytes
         // to exceed the original claimed size of the resource, otherwise our progress will get
         // booched and we'll end up back on the Daily WTF: http://tinyurl.com/29wt4oq
-        _downloaded.put(rsrc, Math.min(actualSize, currentSize));
+        // (the segments of a resource report concurrently, so their reports may arrive out of
+        // order; we only ever advance)
+        long current = Math.min(size, currentSize), previous;
+        do {
+            previous = _rsrcDownloaded.get(idx);
+        } while (current > previous && !_rsrcDownloaded.compareAndSet(idx, previous, current));
+        long delta = Math.max(current - previous, 0L);
+        long downloaded = (delta == 0) ? _totalDownloaded.get() : _totalDownloaded.addAndGet(delta);
 
-        // notify the observer if it's been sufficiently long since our last notification
+        // let our concurrency controller know how much data is flowing
         long now = System.currentTimeMillis();
-        if ((now - _lastUpdate) >= UPDATE_DELAY) {
-            _lastUpdate = now;
+        if (_concurrency != null && delta > 0) {
+            _concurrency.noteBytes(delta, now);
+        }
 
-            // total up our current and total bytes
-            long downloaded = sum(_downloaded.values());
-            long totalSize = sum(_sizes.values());
+        // notify the observer if it's been sufficiently long since our last notification (only
+        // one thread wins the right to do so)
+        long lastUpdate = _lastUpdate.get();
+        if ((now - lastUpdate) >= UPDATE_DELAY && _lastUpdate.compareAndSet(lastUpdate, now)) {
+            long totalSize = _totalSize.get();
 
             // compute our bytes per second
             long secs = (now - _start) / 1000L;
@@ -204,6 +587,10 @@ public class Downloader
 
             // compute our percentage completion
             int pctdone = (totalSize == 0) ? 0 : (int)((downloaded * 100f) / totalSize);
+            // we can't be done while some sizes are still estimates
+            if (_estimatedCount.get() > 0) {
+                pctdone = Math.min(pctdone, 99);
+            }
 
             // estimate our time remaining
             long remaining = (bps <= 0 || totalSize == 0) ? -1 : (totalSize - downloaded) / bps;
@@ -230,20 +617,78 @@ public class Downloader
 
     protected enum State { DOWNLOADING, COMPLETE, FAILED, ABORTED }
 
+    /**
+     * Downloads {@code rsrc}, trying each of its mirrors in turn (if any) should the download
+     * from its primary location fail.
+     */
+    protected void download (Resource rsrc) throws IOException {
+        try {
+            download(rsrc, rsrc.getRemote());
+        } catch (IOException ioe) {
+            for (URL alt : _conn.mirrors().alternates(rsrc.getRemote())) {
+                if (_state == State.ABORTED) break;
+                log.warning("Download failed, trying mirror", "rsrc", rsrc, "mirror", alt,
+                            "error", ioe);
+                try {
+                    download(rsrc, alt);
+                    return;
+                } catch (IOException mioe) {
+                    ioe = mioe;
+                }
+            }
+            throw ioe;
+        }
+    }
+
     /**
      * Accomplishes the copying of the resource from remote location to local location using
      * protocol-specific code. This method should periodically check whether {@code _state} is set
      * to aborted and abort any in-progress download if so.
+     * @param remote the URL from which to download the resource (its primary location or a
+     * mirror thereof).
      */
-    protected void download (Resource rsrc) throws IOException {
-        URLConnection conn = _conn.open(rsrc.getRemote(), 0, 0);
+    protected void download (Resource rsrc, URL remote) throws IOException {
+        // if we're allowed to resume downloads, see if we have a partial download for this
+        // resource from a previous (interrupted) attempt
+        PartialDownload partial = _resume ? PartialDownload.load(rsrc) : null;
+        long offset = (partial == null) ? 0L : partial.bytes;
+
+        URLConnection conn = _conn.open(remote, 0, 0);
+        boolean ranged = (offset > 0) && (conn instanceof HttpURLConnection);
+        if (ranged) {
+            // if the resource changed since we started, the server will send us the whole thing
+            conn.setRequestProperty("Range", "bytes=" + offset + "-");
+            conn.setRequestProperty("If-Range", partial.validator());
+        }
+
         // make sure we got a satisfactory response code
+        long requested = System.currentTimeMillis();
         int code = _conn.checkConnectStatus(conn);
+        noteLatency(System.currentTimeMillis() - requested);
+        if (ranged && (code == HTTP_RANGE_NOT_SATISFIABLE ||
+                       (code == HttpURLConnection.HTTP_PARTIAL && !rangeStartsAt(conn, offset)))) {
+            // our partial download is bogus in some way, so discard it and start over
+            log.info("Unable to resume download, restarting", "url", remote,
+                     "have", offset, "code", code, "range", conn.getHeaderField("Content-Range"));
+            PartialDownload.clear(rsrc);
+            _conn.release(conn);
+            download(rsrc, remote);
+            return;
+        }
         if (code == HttpURLConnection.HTTP_NOT_FOUND) {
             resourceMissing(rsrc);
-        } else if (code != HttpURLConnection.HTTP_OK) {
+        } else if (code != HttpURLConnection.HTTP_OK &&
+                   !(ranged && code == HttpURLConnection.HTTP_PARTIAL)) {
+            _conn.release(conn);
             throw new IOException(
-                "Resource returned HTTP error " + rsrc.getRemote() + " [code=" + code + "]");
+                "Resource returned HTTP error " + remote + " [code=" + code + "]");
+        }
+
+        // if the server ignored (or rejected via If-Range) our range request, we start over
+        boolean resuming = ranged && (code == HttpURLConnection.HTTP_PARTIAL);
+        if (!resuming) {
+            offset = 0L;
+            partial = _resume ? PartialDownload.start(rsrc, conn) : null;
         }
 
         // TODO: make FileChannel download impl (below) robust and allow apps to opt-into it via a
@@ -251,33 +696,114 @@ public class Downloader
         if (true) {
             // download the resource from the specified URL
             long actualSize = conn.getContentLength();
-            log.info("Downloading resource", "url", rsrc.getRemote(), "size", actualSize);
-            long currentSize = 0L;
-            byte[] buffer = new byte[4*4096];
-            try (InputStream in = conn.getInputStream();
-                 FileOutputStream out = new FileOutputStream(rsrc.getLocalNew())) {
-
-                // TODO: look to see if we have a download info file
-                // containing info on potentially partially downloaded data;
-                // if so, use a "Range: bytes=HAVE-" header.
-
-                // read in the file data
-                int read;
-                while ((read = in.read(buffer)) != -1) {
-                    // abort the download if the downloader is aborted
-                    if (_state == State.ABORTED) {
-                        break;
+            if (resuming && actualSize >= 0) {
+                actualSize += offset;
+            }
+            log.info("Downloading resource", "url", remote, "size", actualSize,
+                     "resumeAt", offset);
+            File localNew = rsrc.getLocalNew();
+            if (resuming) {
+                // trim anything past the point we know was completely written
+                try (RandomAccessFile raf = new RandomAccessFile(localNew, "rw")) {
+                    raf.setLength(offset);
+                }
+            }
+
+            // if we know what the resource should hash to, hash it as we go so that it need not be
+            // read back in again to validate it once it's downloaded
+            boolean isZip = Resource.isJar(rsrc.getLocal()) || Resource.isZip(rsrc.getLocal());
+            String edigest = isZip ? null : expectedDigest(rsrc);
+            MessageDigest md = (edigest == null) ? null : Digest.getMessageDigest(digestVersion());
+            if (md != null && resuming) {
+                digestPrefix(localNew, offset, md);
+            }
+
+            // if this is an archive that will be unpacked, we may extract it as it arrives
+            File staging = (isZip && !resuming) ? stagingDirFor(rsrc) : null;
+            String zdigest = (staging == null || digestVersion() < 3) ? null : expectedDigest(rsrc);
+            StagingUnpacker unpacker = (zdigest == null) ? null :
+                new StagingUnpacker(staging, digestVersion());
+            boolean staged = false;
+
+            try {
+                long currentSize = offset, checkpoint = offset;
+                byte[] buffer = new byte[4*4096];
+                try (InputStream in = conn.getInputStream();
+                     FileOutputStream out = new FileOutputStream(localNew, resuming)) {
+                    if (partial != null) {
+                        partial.save(currentSize);
+                    }
+                    try {
+                        // read in the file data
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            // abort the download if the downloader is aborted
+                            if (_state == State.ABORTED) {
+                                break;
+                            }
+                            // stay within our bandwidth limit, if we have one
+                            if (_limiter != null) {
+                                _limiter.acquire(read);
+                            }
+                            // write it out to our local copy
+                            out.write(buffer, 0, read);
+                            if (md != null) {
+                                md.update(buffer, 0, read);
+                            }
+                            if (unpacker != null) {
+                                unpacker.write(buffer, 0, read);
+                            }
+                            // note that we've downloaded some data
+                            currentSize += read;
+                            reportProgress(rsrc, currentSize, actualSize);
+                            // periodically note how far we've gotten in case we're interrupted
+                            if (partial != null &&
+                                currentSize - checkpoint >= RESUME_CHECKPOINT) {
+                                out.flush();
+                                partial.save(checkpoint = currentSize);
+                            }
+                        }
+                    } finally {
+                        // record our progress for a future attempt if we didn't finish
+                        if (partial != null) {
+                            out.flush();
+                            partial.save(currentSize);
+                        }
+                    }
+                }
+
+                // if we made it all the way through, we no longer need our partial download info
+                if (_state != State.ABORTED) {
+                    // a connection that's closed early can look like a normal end of stream
+                    if (actualSize >= 0 && currentSize < actualSize) {
+                        throw new IOException(
+                            "Download of " + remote + " truncated " +
+                            "[expected=" + actualSize + ", got=" + currentSize + "]");
+                    }
+                    PartialDownload.clear(rsrc);
+
+                    if (md != null) {
+                        String digest = StringUtil.hexlate(md.digest());
+                        if (digest.equals(edigest)) {
+                            downloadVerified(rsrc);
+                        } else {
+                            // we'll find and report this when we validate the resource
+                            log.info("Downloaded resource failed digest check", "rsrc", rsrc,
+                                     "computed", digest, "expected", edigest);
+                        }
+                    }
+                    if (unpacker != null) {
+                        staged = finishStaging(rsrc, unpacker, zdigest);
                     }
-                    // write it out to our local copy
-                    out.write(buffer, 0, read);
-                    // note that we've downloaded some data
-                    currentSize += read;
-                    reportProgress(rsrc, currentSize, actualSize);
+                }
+            } finally {
+                if (unpacker != null && !staged) {
+                    unpacker.discard();
                 }
             }
 
         } else {
-            log.info("Downloading resource", "url", rsrc.getRemote(), "size", "unknown");
+            log.info("Downloading resource", "url", remote, "size", "unknown");
             File localNew = rsrc.getLocalNew();
             try (ReadableByteChannel rbc = Channels.newChannel(conn.getInputStream());
                  FileOutputStream fos = new FileOutputStream(localNew)) {
@@ -290,27 +816,451 @@ public class Downloader
         }
     }
 
+    /**
+     * Waits for {@code unpacker} to finish extracting {@code rsrc}, which has been downloaded in
+     * full, and notes that the extracted files are ready to be moved into place if both they and
+     * the downloaded archive (as read via its central directory) match {@code edigest}.
+     * @return true if the extracted files were staged, false if they should be discarded.
+     */
+    protected boolean finishStaging (Resource rsrc, StagingUnpacker unpacker, String edigest)
+        throws IOException
+    {
+        String digest;
+        try {
+            digest = unpacker.finish();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while unpacking " + rsrc);
+        }
+        if (digest == null) {
+            return false;
+        }
+        if (!digest.equals(edigest)) {
+            // we'll find and report this when we validate the resource
+            log.info("Downloaded resource failed digest check", "rsrc", rsrc,
+                     "computed", digest, "expected", edigest);
+            return false;
+        }
+        // we extracted (and digested) the entries described by the archive's local headers, but
+        // the archive itself is read (by ZipFile and the class loader) via its central directory,
+        // which could describe entirely different entries, so the archive must match as well
+        int version = digestVersion();
+        try {
+            String jdigest = Resource.computeDigest(
+                version, rsrc.getLocalNew(), Digest.getMessageDigest(version), null);
+            if (!jdigest.equals(edigest)) {
+                log.warning("Downloaded archive does not match its extracted entries", "rsrc", rsrc,
+                            "computed", jdigest, "expected", edigest);
+                return false;
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to digest downloaded archive", "rsrc", rsrc, "error", ioe);
+            return false;
+        }
+        rsrc.noteStaged();
+        downloadVerified(rsrc);
+        return true;
+    }
+
+    /**
+     * Feeds the first {@code length} bytes of {@code file} into {@code md}.
+     */
+    protected static void digestPrefix (File file, long length, MessageDigest md)
+        throws IOException
+    {
+        byte[] buffer = new byte[4*4096];
+        try (FileInputStream in = new FileInputStream(file)) {
+            long remain = length;
+            while (remain > 0) {
+                int read = in.read(buffer, 0, (int)Math.min(buffer.length, remain));
+                if (read < 0) {
+                    break;
+                }
+                md.update(buffer, 0, read);
+                remain -= read;
+            }
+            if (remain > 0) {
+                throw new IOException("Partial download shorter than expected " +
+                                      "[file=" + file + ", length=" + length + "]");
+            }
+        }
+    }
+
+    /**
+     * Returns true if {@code rsrc}, which is {@code size} bytes long, should be downloaded in
+     * segments.
+     */
+    protected boolean shouldSegment (Resource rsrc, long size)
+    {
+        // we need a size to split and a protocol that supports range requests
+        return _segmentThreshold > 0 && _segments > 1 && size >= _segmentThreshold &&
+            rsrc.getRemote().getProtocol().startsWith("http");
+    }
+
+    /**
+     * Downloads a single segment of a segmented resource, trying each of the resource's mirrors in
+     * turn (if any) should the download from its primary location fail.
+     */
+    protected void downloadSegment (Segments segs, int segment) throws IOException
+    {
+        URL remote = segs.rsrc.getRemote();
+        try {
+            downloadSegment(segs, segment, remote);
+        } catch (IOException ioe) {
+            for (URL alt : _conn.mirrors().alternates(remote)) {
+                if (_state == State.ABORTED) break;
+                log.warning("Segment download failed, trying mirror", "rsrc", segs.rsrc,
+                            "segment", segment, "mirror", alt, "error", ioe);
+                try {
+                    downloadSegment(segs, segment, alt);
+                    return;
+                } catch (IOException mioe) {
+                    ioe = mioe;
+                }
+            }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Downloads a single segment of a segmented resource from {@code remote}, writing the
+     * downloaded bytes into the appropriate region of the resource's {@code _new} file.
+     */
+    protected void downloadSegment (Segments segs, int segment, URL remote) throws IOException
+    {
+        Resource rsrc = segs.rsrc;
+        long start = segs.start(segment), end = segs.end(segment);
+
+        URLConnection conn = _conn.open(remote, 0, 0);
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        long requested = System.currentTimeMillis();
+        int code = _conn.checkConnectStatus(conn);
+        noteLatency(System.currentTimeMillis() - requested);
+        boolean whole = (code == HttpURLConnection.HTTP_OK);
+        if (whole) {
+            // the server doesn't do ranges: the first segment downloads the whole resource and
+            // the others simply bow out
+            segs.unranged = true;
+            if (segment > 0) {
+                ((HttpURLConnection)conn).disconnect();
+                return;
+            }
+            start = 0L;
+            end = segs.size - 1;
+        } else if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+            _conn.release(conn);
+            resourceMissing(rsrc);
+            throw new IOException("Resource not found " + remote);
+        } else if (code != HttpURLConnection.HTTP_PARTIAL) {
+            _conn.release(conn);
+            throw new IOException(
+                "Resource returned HTTP error " + remote + " [code=" + code + "]");
+        } else if (!rangeStartsAt(conn, start)) {
+            _conn.release(conn);
+            throw new IOException("Resource returned unexpected range " + remote +
+                                  " [want=" + start + "-" + end +
+                                  ", got=" + conn.getHeaderField("Content-Range") + "]");
+        }
+
+        long position = start, limit = end + 1;
+        byte[] buffer = new byte[4*4096];
+        ByteBuffer bbuf = ByteBuffer.wrap(buffer);
+        try (InputStream in = conn.getInputStream()) {
+            int read;
+            while (position < limit && (read = in.read(buffer)) != -1) {
+                // abort the download if the downloader is aborted
+                if (_state == State.ABORTED) {
+                    break;
+                }
+                // never write outside of our segment
+                read = (int)Math.min(read, limit - position);
+                // stay within our bandwidth limit, if we have one
+                if (_limiter != null) {
+                    _limiter.acquire(read);
+                }
+                bbuf.clear().limit(read);
+                while (bbuf.hasRemaining()) {
+                    position += segs.channel.write(bbuf, position);
+                }
+                reportProgress(rsrc, segs.downloaded.addAndGet(read),
+                               whole ? segs.size : segs.total);
+            }
+        }
+        if (_state != State.ABORTED && position < limit) {
+            throw new IOException("Segment of " + remote + " truncated " +
+                                  "[range=" + start + "-" + end +
+                                  ", got=" + (position-start) + "]");
+        }
+        if (whole) {
+            segs.whole = true;
+        }
+    }
+
+    /**
+     * Returns true if the {@code Content-Range} reported by {@code conn} starts at {@code offset}.
+     */
+    protected static boolean rangeStartsAt (URLConnection conn, long offset)
+    {
+        // Content-Range: bytes START-END/TOTAL
+        String range = conn.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return false;
+        }
+        int didx = range.indexOf('-');
+        try {
+            return didx > 6 && Long.parseLong(range.substring(6, didx).trim()) == offset;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     * Describes the damaged portions of a resource's existing local copy (its {@code _new} file if
+     * it has one, its local file otherwise), which can be repaired by downloading just those
+     * portions.
+     */
+    public static class Repair
+    {
+        /** The size of the intact resource. */
+        public final long size;
+
+        /** The damaged byte ranges, as ascending {@code [start, end]} (inclusive) pairs. */
+        public final List<long[]> ranges;
+
+        public Repair (long size, List<long[]> ranges) {
+            this.size = size;
+            this.ranges = ranges;
+        }
+
+        /** Returns the number of bytes that must be downloaded to effect this repair. */
+        public long bytes () {
+            long bytes = 0L;
+            for (long[] range : ranges) {
+                bytes += range[1] - range[0] + 1;
+            }
+            return bytes;
+        }
+    }
+
+    /** Tracks the state of a resource that is being downloaded in segments. */
+    protected class Segments
+    {
+        /** The resource being downloaded. */
+        public final Resource rsrc;
+
+        /** The total size of the resource. */
+        public final long size;
+
+        /** The number of segments to be downloaded. */
+        public final int count;
+
+        /** The total number of bytes in all segments. */
+        public final long total;
+
+        /** The channel into which all segments are written. */
+        public final FileChannel channel;
+
+        /** The total number of bytes downloaded across all segments. */
+        public final AtomicLong downloaded = new AtomicLong();
+
+        /** Set to true if the server ignored our range request and sent the whole resource. */
+        public volatile boolean unranged;
+
+        /** Set to true once the whole resource has been downloaded in response to a request for
+          * one segment. */
+        public volatile boolean whole;
+
+        /** Creates segments for the download of {@code rsrc} as {@code count} equal ranges. */
+        public Segments (Resource rsrc, long size, int count, boolean critical)
+            throws IOException {
+            this(rsrc, size, evenRanges(size, count), critical);
+        }
+
+        /**
+         * Creates segments for the repair of {@code rsrc}. Its damaged local copy is moved into
+         * its {@code _new} file (if it's not already there) and the damaged ranges overwritten.
+         */
+        public Segments (Resource rsrc, Repair repair, boolean critical) throws IOException {
+            this(rsrc, repair.size, seedRepair(rsrc, repair), critical);
+        }
+
+        protected Segments (Resource rsrc, long size, List<long[]> ranges, boolean critical)
+            throws IOException {
+            this.rsrc = rsrc;
+            this.size = size;
+            this.count = ranges.size();
+            _ranges = ranges;
+            long total = 0L;
+            for (long[] range : ranges) {
+                total += range[1] - range[0] + 1;
+            }
+            this.total = total;
+            _critical = critical;
+            _pending.set(count);
+            // we can't resume a segmented download, so clear any partial download info
+            PartialDownload.clear(rsrc);
+            RandomAccessFile raf = new RandomAccessFile(rsrc.getLocalNew(), "rw");
+            try {
+                raf.setLength(size);
+            } catch (IOException ioe) {
+                raf.close();
+                throw ioe;
+            }
+            this.channel = raf.getChannel();
+        }
+
+        /** Returns the offset of the first byte of {@code segment}. */
+        public long start (int segment) {
+            return _ranges.get(segment)[0];
+        }
+
+        /** Returns the offset of the last byte of {@code segment} (inclusive). */
+        public long end (int segment) {
+            return _ranges.get(segment)[1];
+        }
+
+        /** Reports a failure to download a segment. Only the first failure is reported. */
+        public void failed (Exception cause) {
+            if (_failed.compareAndSet(false, true)) {
+                _state = State.FAILED;
+                downloadFailed(rsrc, cause);
+            }
+        }
+
+        /** Notes that a segment has finished (successfully or otherwise). */
+        public void segmentDone () {
+            if (_pending.decrementAndGet() > 0) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                log.warning("Failed to close segmented download", "rsrc", rsrc, "error", ioe);
+            }
+            // if one segment got a partial response and another got the whole resource, we've
+            // ended up with gaps; this is unlikely (it requires inconsistent servers)
+            if (unranged && !whole && _state != State.ABORTED) {
+                failed(new IOException("Server inconsistently honored range requests for " +
+                                       rsrc.getRemote()));
+            }
+            if (_critical && !_failed.get() && _state != State.ABORTED) {
+                criticalDownloaded();
+            }
+        }
+
+        protected final List<long[]> _ranges;
+        protected final AtomicInteger _pending = new AtomicInteger();
+        protected final AtomicBoolean _failed = new AtomicBoolean();
+        protected final boolean _critical;
+    }
+
+    /**
+     * Splits a resource of {@code size} bytes into {@code count} ranges of (roughly) equal size.
+     */
+    protected static List<long[]> evenRanges (long size, int count)
+    {
+        List<long[]> ranges = new ArrayList<>();
+        long length = size / count;
+        for (int ii = 0; ii < count; ii++) {
+            long end = (ii == count-1) ? size-1 : (ii+1)*length-1;
+            ranges.add(new long[] { ii*length, end });
+        }
+        return ranges;
+    }
+
+    /**
+     * Moves the damaged local copy of {@code rsrc} into its {@code _new} file (unless the damaged
+     * copy is its {@code _new} file), so that it can be repaired in place. If the local copy is
+     * hard linked (into the code cache, say), it is copied instead, as the linked file must not
+     * be modified.
+     * @return the ranges of {@code repair}.
+     */
+    protected static List<long[]> seedRepair (Resource rsrc, Repair repair) throws IOException
+    {
+        File local = rsrc.getLocal(), localNew = rsrc.getLocalNew();
+        if (localNew.exists()) {
+            return repair.ranges;
+        }
+        if (FileUtil.linkCount(local) > 1) {
+            FileUtil.copy(local, localNew);
+        } else if (!FileUtil.renameTo(local, localNew)) {
+            throw new IOException("Unable to move " + local + " aside for repair");
+        }
+        return repair.ranges;
+    }
+
     protected final Connector _conn;
 
-    /** The reported sizes of our resources. */
+    /** The sizes of our resources as determined (or estimated) before downloading begins. For
+      * resources being repaired, the number of bytes to be downloaded. */
     protected final Map<Resource, Long> _sizes = new HashMap<>();
 
+    /** The resources whose damaged local copies we're repairing. */
+    protected final Map<Resource, Repair> _repairs = new HashMap<>();
+
+    /** The index of each resource's counters in our progress tracking arrays. */
+    protected final Map<Resource, Integer> _indices = new HashMap<>();
+
+    /** The current size of each resource, updated as actual sizes are reported. */
+    protected AtomicLongArray _rsrcSizes;
+
     /** The bytes downloaded for each resource. */
-    protected final Map<Resource, Long> _downloaded = new HashMap<>();
+    protected AtomicLongArray _rsrcDownloaded;
+
+    /** {@code 1} for each resource whose size is only an estimate, {@code 0} otherwise. */
+    protected AtomicIntegerArray _estimated;
+
+    /** The number of resources whose size is only an estimate. */
+    protected final AtomicInteger _estimatedCount = new AtomicInteger();
+
+    /** The sum of {@link #_rsrcSizes}. */
+    protected final AtomicLong _totalSize = new AtomicLong();
+
+    /** The sum of {@link #_rsrcDownloaded}. */
+    protected final AtomicLong _totalDownloaded = new AtomicLong();
+
+    /** The number of priority {@code 0} resources that have yet to be downloaded. */
+    protected final AtomicInteger _codePending = new AtomicInteger();
 
     /** The time at which the file transfer began. */
     protected long _start;
 
-    /** The current transfer rate in bytes per second. */
-    protected long _bytesPerSecond;
-
     /** The time at which the last progress update was posted to the progress observer. */
-    protected long _lastUpdate;
+    protected final AtomicLong _lastUpdate = new AtomicLong();
 
     /** A wee state machine to ensure we call our callbacks sanely. */
     protected volatile State _state = State.DOWNLOADING;
 
+    /** Whether or not we resume partially downloaded resources. */
+    protected boolean _resume;
+
+    /** Limits our aggregate download rate, or null if we have no limit. */
+    protected RateLimiter _limiter;
+
+    /** Whether or not we adapt our concurrency to the connection. */
+    protected boolean _adaptive;
+
+    /** Limits our concurrent transfers when adapting concurrency, null otherwise. */
+    protected ConcurrencyController _concurrency;
+
+    /** Resources at least this large are downloaded in segments (0 disables segmenting). */
+    protected long _segmentThreshold;
+
+    /** The number of segments into which to split large resources. */
+    protected int _segments;
+
     /** The delay in milliseconds between notifying progress observers of file download
       * progress. */
     protected static final long UPDATE_DELAY = 500L;
+
+    /** The number of concurrent downloads with which we start when adapting concurrency. */
+    protected static final int ADAPTIVE_INITIAL_CONCURRENCY = 2;
+
+    /** The size assumed for resources when no resource sizes are known in advance. */
+    protected static final long UNKNOWN_SIZE_ESTIMATE = 1024 * 1024L;
+
+    /** The number of bytes we download between updates to a resource's partial download info. */
+    protected static final long RESUME_CHECKPOINT = 1024 * 1024L;
+
+    /** Not defined by {@link HttpURLConnection}, sadly. */
+    protected static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 }
@@ -0,0 +1,125 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.threerings.getdown.data.Build;
+import com.threerings.getdown.util.HostWhitelist;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * An ordered list of equivalent application bases (each of which may contain a {@code %VERSION%}
+ * placeholder), used to map a URL on one mirror to the equivalent URLs on the others.
+ */
+public class Mirrors
+{
+    /** An empty mirror list, which provides no alternates for any URL. */
+    public static final Mirrors NONE = new Mirrors(Collections.<String>emptyList());
+
+    /**
+     * Creates a mirror list from the supplied application bases, in order of preference. Mirrors
+     * are checked against the built-in host whitelist (see {@link Build#hostWhitelist()}).
+     */
+    public Mirrors (List<String> appbases)
+    {
+        this(appbases, Build.hostWhitelist());
+    }
+
+    /**
+     * Creates a mirror list from the supplied application bases, in order of preference. Mirrors
+     * are checked against the supplied host whitelist (see {@link HostWhitelist#verify(List,URL)}).
+     */
+    public Mirrors (List<String> appbases, List<String> whitelist)
+    {
+        _appbases = Collections.unmodifiableList(new ArrayList<>(appbases));
+        _whitelist = whitelist;
+        for (String appbase : _appbases) {
+            _patterns.add(toPattern(appbase));
+        }
+    }
+
+    /**
+     * Returns the application bases in this list, in order of preference.
+     */
+    public List<String> appbases ()
+    {
+        return _appbases;
+    }
+
+    /**
+     * Returns the number of mirrors in this list.
+     */
+    public int size ()
+    {
+        return _appbases.size();
+    }
+
+    /**
+     * Returns the URLs equivalent to {@code url} on every mirror other than the one it refers to,
+     * in order of preference. Alternates whose hosts are not in our host whitelist are omitted.
+     * If {@code url} does not refer to any of our mirrors, an empty list is returned.
+     */
+    public List<URL> alternates (URL url)
+    {
+        List<URL> alts = new ArrayList<>();
+        String surl = url.toString();
+        for (int ii = 0, ll = _patterns.size(); ii < ll; ii++) {
+            Matcher m = _patterns.get(ii).matcher(surl);
+            if (!m.matches()) continue;
+
+            // the version (if any) and the path relative to the appbase are the last two groups
+            String version = (m.groupCount() > 1) ? m.group(1) : null;
+            String path = m.group(m.groupCount());
+            for (int jj = 0; jj < ll; jj++) {
+                if (jj == ii) continue;
+                String base = _appbases.get(jj);
+                if (version != null) {
+                    base = base.replace(VERSION, version);
+                }
+                try {
+                    alts.add(HostWhitelist.verify(_whitelist, new URL(base + path)));
+                } catch (MalformedURLException mue) {
+                    log.warning("Skipping invalid mirror", "base", base, "error", mue);
+                }
+            }
+            break;
+        }
+        return alts;
+    }
+
+    /**
+     * Converts an appbase into a pattern which matches URLs that refer to resources in said appbase,
+     * capturing the version (if the appbase is versioned) and the path relative to the appbase.
+     */
+    protected static Pattern toPattern (String appbase)
+    {
+        StringBuilder regex = new StringBuilder();
+        int vidx = appbase.indexOf(VERSION);
+        if (vidx < 0) {
+            regex.append(Pattern.quote(appbase));
+        } else {
+            // we only capture the first occurrence; any others must contain the same version
+            regex.append(Pattern.quote(appbase.substring(0, vidx))).append("(\\d+)");
+            String rest = appbase.substring(vidx + VERSION.length());
+            regex.append(Pattern.quote(rest).replace(VERSION, "\\E\\1\\Q"));
+        }
+        return Pattern.compile(regex.append("(.*)").toString());
+    }
+
+    protected final List<String> _appbases;
+    protected final List<Pattern> _patterns = new ArrayList<>();
+    protected final List<String> _whitelist;
+
+    protected static final String VERSION = "%VERSION%";
+}
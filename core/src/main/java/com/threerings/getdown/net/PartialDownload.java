@@ -0,0 +1,161 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URLConnection;
+
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.Config;
+import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.StringUtil;
+
+import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Tracks the state of a partially downloaded resource in a small sidecar file that lives next to
+ * its {@code _new} file. This allows an interrupted download to be resumed (via an HTTP range
+ * request) rather than restarted from scratch.
+ */
+public class PartialDownload
+{
+    /** The number of bytes of the resource that have been written to its {@code _new} file. */
+    public long bytes;
+
+    /** The {@code ETag} reported by the server when the download was started, or null. */
+    public String etag;
+
+    /** The {@code Last-Modified} reported by the server when the download was started, or null. */
+    public String lastModified;
+
+    /**
+     * Returns the sidecar file used to track partial download state for {@code rsrc}.
+     */
+    public static File infoFile (Resource rsrc)
+    {
+        return new File(rsrc.getLocalNew().getPath() + INFO_SUFFIX);
+    }
+
+    /**
+     * Loads the partial download state for {@code rsrc}. Returns null if there is no record of a
+     * partial download, or if the record is unusable (no validator, or the {@code _new} file is
+     * shorter than the recorded byte count).
+     */
+    public static PartialDownload load (Resource rsrc)
+    {
+        File info = infoFile(rsrc), localNew = rsrc.getLocalNew();
+        if (!info.exists()) {
+            return null;
+        }
+        if (!localNew.exists()) {
+            clear(rsrc);
+            return null;
+        }
+
+        PartialDownload pd = new PartialDownload(rsrc);
+        try {
+            Config.ParseOpts opts = Config.createOpts(false);
+            // entity tags may legitimately contain #, so only treat leading # as a comment
+            opts.strictComments = true;
+            for (String[] pair : Config.parsePairs(info, opts)) {
+                if ("bytes".equals(pair[0])) {
+                    pd.bytes = Long.parseLong(pair[1]);
+                } else if ("etag".equals(pair[0])) {
+                    pd.etag = pair[1];
+                } else if ("last_modified".equals(pair[0])) {
+                    pd.lastModified = pair[1];
+                }
+            }
+        } catch (Exception e) {
+            log.warning("Failed to read partial download info", "info", info, "error", e);
+            clear(rsrc);
+            return null;
+        }
+
+        if (pd.bytes <= 0 || pd.bytes > localNew.length() || pd.validator() == null) {
+            clear(rsrc);
+            return null;
+        }
+        return pd;
+    }
+
+    /**
+     * Deletes any partial download state recorded for {@code rsrc}.
+     */
+    public static void clear (Resource rsrc)
+    {
+        File info = infoFile(rsrc);
+        if (info.exists() && !FileUtil.deleteHarder(info)) {
+            log.warning("Failed to delete partial download info", "info", info);
+        }
+    }
+
+    /**
+     * Creates partial download state for {@code rsrc}, recording the validators reported by the
+     * server in {@code conn}.
+     */
+    public static PartialDownload start (Resource rsrc, URLConnection conn)
+    {
+        PartialDownload pd = new PartialDownload(rsrc);
+        pd.etag = conn.getHeaderField("ETag");
+        pd.lastModified = conn.getHeaderField("Last-Modified");
+        return pd;
+    }
+
+    /**
+     * Returns the value to supply in an {@code If-Range} header when resuming this download, or
+     * null if the server did not supply a strong validator.
+     */
+    public String validator ()
+    {
+        // weak entity tags are not allowed in If-Range, so fall back to the modification time
+        if (!StringUtil.isBlank(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return StringUtil.isBlank(lastModified) ? null : lastModified;
+    }
+
+    /**
+     * Records that {@code bytes} bytes have been written to the {@code _new} file. The caller must
+     * ensure that said bytes have been flushed to the file before calling this method.
+     */
+    public void save (long bytes)
+    {
+        this.bytes = bytes;
+        // if the server gave us nothing with which to validate a resumption, don't bother
+        if (validator() == null) {
+            return;
+        }
+        File info = infoFile(_rsrc);
+        try (FileOutputStream fout = new FileOutputStream(info);
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(fout, UTF_8))) {
+            out.println("bytes = " + bytes);
+            if (etag != null) {
+                out.println("etag = " + etag);
+            }
+            if (lastModified != null) {
+                out.println("last_modified = " + lastModified);
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to write partial download info", "info", info, "error", ioe);
+        }
+    }
+
+    protected PartialDownload (Resource rsrc)
+    {
+        _rsrc = rsrc;
+    }
+
+    protected final Resource _rsrc;
+
+    /** The suffix appended to a resource's {@code _new} file to obtain its sidecar file. */
+    protected static final String INFO_SUFFIX = ".part";
+}
@@ -0,0 +1,94 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket which limits the aggregate rate at which bytes are transferred by any number of
+ * threads. Tokens accrue at the configured rate, up to one second's worth, and each transfer
+ * consumes one token per byte. A thread which consumes more tokens than are available incurs a
+ * debt which it sleeps off before continuing, so concurrent threads share the available rate.
+ *
+ * <p>As every download thread calls {@link #acquire} for every buffer it reads, the bucket takes
+ * no lock: its state is the time at which it was (or will be, if in debt) empty, which each
+ * transfer advances by the time its bytes take to accrue, via compare-and-set.
+ */
+public class RateLimiter
+{
+    /**
+     * Creates a rate limiter which allows {@code bytesPerSecond} bytes per second.
+     */
+    public RateLimiter (long bytesPerSecond)
+    {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        }
+        _rate = bytesPerSecond;
+        // we start with a full bucket
+        _empty = new AtomicLong(nanoTime() - NANOS_PER_SECOND);
+    }
+
+    /**
+     * Returns the rate (in bytes per second) enforced by this limiter.
+     */
+    public long rate ()
+    {
+        return _rate;
+    }
+
+    /**
+     * Notes that {@code bytes} bytes have been transferred, blocking as long as needed to keep the
+     * aggregate transfer rate at or below our limit. If the calling thread is interrupted while
+     * waiting, this returns early (with the thread's interrupt status set).
+     */
+    public void acquire (long bytes)
+    {
+        long cost = bytes * NANOS_PER_SECOND / _rate, now, empty;
+        while (true) {
+            now = nanoTime();
+            long prev = _empty.get();
+            // the bucket holds at most one second's worth of tokens
+            empty = Math.max(prev, now - NANOS_PER_SECOND) + cost;
+            if (_empty.compareAndSet(prev, empty)) {
+                break;
+            }
+        }
+        long debt = empty - now;
+        if (debt > 0) {
+            try {
+                sleep(debt);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the current time in nanoseconds. Overridable for testing.
+     */
+    protected long nanoTime ()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * Sleeps for {@code nanos} nanoseconds. Overridable for testing.
+     */
+    protected void sleep (long nanos) throws InterruptedException
+    {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+
+    protected final long _rate;
+
+    /** The time (in nanos) at which the bucket was, or will be, empty. The bucket holds tokens for
+      * the time elapsed since then, up to one second's worth. */
+    protected final AtomicLong _empty;
+
+    protected static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+}
@@ -0,0 +1,179 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.threerings.getdown.data.Digest;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.StringUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Extracts the entries of a zip file into a staging directory as the zip file is downloaded, by
+ * parsing the local file headers of the downloaded data as it arrives. Extraction happens on a
+ * separate thread, which is fed via a pipe, so that writing out the entries overlaps with the
+ * download. The digest of the zip file is computed from the extracted entries.
+ *
+ * <p>If the data can't be extracted in this manner (a zip file needn't be readable front to back),
+ * extraction is abandoned, but the data continues to be consumed so that the download proceeds
+ * unhindered, and the zip file is unpacked as usual once it is installed.
+ */
+public class StagingUnpacker
+{
+    /**
+     * Creates an unpacker which extracts into {@code staging} (which is first emptied) and
+     * computes the zip file's digest via the specified digest protocol version (which must be 3 or
+     * newer).
+     */
+    public StagingUnpacker (File staging, int version)
+        throws IOException
+    {
+        if (staging.exists()) {
+            FileUtil.deleteDirHarder(staging);
+        }
+        if (!staging.mkdirs()) {
+            throw new IOException("Failed to create staging directory " + staging);
+        }
+        _staging = staging;
+        _version = version;
+        _in = new PipedInputStream(PIPE_SIZE);
+        _out = new PipedOutputStream(_in);
+        _thread = new Thread("Getdown unpacker: " + staging.getName()) {
+            @Override public void run () {
+                extract();
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Supplies the next bytes of the downloaded zip file. This blocks if extraction falls behind
+     * the download by more than a buffer's worth of data.
+     */
+    public void write (byte[] data, int offset, int length)
+        throws IOException
+    {
+        _out.write(data, offset, length);
+    }
+
+    /**
+     * Notes that the zip file has been downloaded in full and waits for extraction to complete.
+     * @return the digest of the zip file, or null if it could not be extracted.
+     */
+    public String finish ()
+        throws IOException, InterruptedException
+    {
+        _out.close();
+        _thread.join();
+        if (_error != null) {
+            log.info("Unable to unpack download as it arrived", "staging", _staging,
+                     "error", _error);
+            return null;
+        }
+        MessageDigest md = Digest.getMessageDigest(_version);
+        for (Map.Entry<String, byte[]> entry : _digests.entrySet()) {
+            Resource.noteEntryDigest(md, entry.getKey(), entry.getValue());
+        }
+        return StringUtil.hexlate(md.digest());
+    }
+
+    /**
+     * Abandons extraction, waits for the extracting thread to exit and deletes the staging
+     * directory. This may be called after {@link #finish}, to discard the extracted files.
+     */
+    public void discard ()
+    {
+        try {
+            _out.close();
+            _thread.join();
+        } catch (IOException | InterruptedException e) {
+            log.warning("Failure discarding staged download", "staging", _staging, "error", e);
+        }
+        FileUtil.deleteDirHarder(_staging);
+    }
+
+    protected void extract ()
+    {
+        try {
+            // we don't close the zip stream, as that would close our pipe before it's drained
+            ZipInputStream zin = new ZipInputStream(_in);
+            MessageDigest md = Digest.getMessageDigest(_version);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ZipEntry entry;
+            while ((entry = zin.getNextEntry()) != null) {
+                File efile = new File(_staging, entry.getName());
+                if (!FileUtil.isAncestor(_staging, efile)) {
+                    throw new IOException("Entry outside of archive: " + entry.getName());
+                }
+                md.reset();
+                if (entry.isDirectory()) {
+                    if (!efile.isDirectory() && !efile.mkdirs()) {
+                        throw new IOException("Failed to create " + efile);
+                    }
+                } else {
+                    File parent = efile.getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs()) {
+                        throw new IOException("Failed to create " + parent);
+                    }
+                    try (OutputStream out = new FileOutputStream(efile)) {
+                        int read;
+                        while ((read = zin.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                            md.update(buffer, 0, read);
+                        }
+                    }
+                }
+                if (_digests.put(entry.getName(), md.digest()) != null) {
+                    throw new IOException("Duplicate entry: " + entry.getName());
+                }
+            }
+            // data that doesn't start with a local file header looks like an empty zip file
+            if (_digests.isEmpty()) {
+                throw new IOException("No entries found");
+            }
+        } catch (Exception e) {
+            _error = e;
+        }
+
+        // consume whatever remains (the zip file's central directory, or everything after whatever
+        // we failed to extract) so that the downloader is never blocked on our pipe
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (_in.read(buffer) != -1) {}
+            _in.close();
+        } catch (IOException ioe) {
+            if (_error == null) {
+                _error = ioe;
+            }
+        }
+    }
+
+    protected final File _staging;
+    protected final int _version;
+    protected final PipedInputStream _in;
+    protected final PipedOutputStream _out;
+    protected final Thread _thread;
+
+    /** The digest of each extracted entry, by name (in the order in which they are digested). */
+    protected final Map<String, byte[]> _digests = new TreeMap<>();
+
+    /** The error which caused us to abandon extraction, if any. */
+    protected volatile Exception _error;
+
+    /** The amount by which extraction may lag the download before the download blocks. */
+    protected static final int PIPE_SIZE = 1024 * 1024;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+}
@@ -0,0 +1,37 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Creates the connections via which {@link Connector} (and hence {@link Downloader}) communicates
+ * with the server. The default transport uses the JVM's built-in {@link URLConnection} support.
+ * An alternative transport (for example one backed by a pooled HTTP/2 client which multiplexes
+ * many requests over a single connection) may be supplied by registering an implementation of
+ * this interface with {@link java.util.ServiceLoader}.
+ */
+public interface Transport
+{
+    /**
+     * Creates an (unconnected) connection to {@code url}.
+     * @param proxy the proxy via which to connect, or null to connect directly.
+     */
+    URLConnection open (URL url, Proxy proxy) throws IOException;
+
+    /**
+     * Configures this transport's connection pool. This is called once, when the transport is
+     * created, before any connections are opened.
+     * @param maxConnections the maximum number of idle connections to retain per host, or
+     * {@code 0} to use the transport's default.
+     * @param idleTimeout the number of seconds an idle connection is retained, or {@code 0} to
+     * use the transport's default.
+     */
+    void configure (int maxConnections, int idleTimeout);
+}
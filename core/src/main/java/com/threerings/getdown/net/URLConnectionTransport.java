@@ -0,0 +1,47 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * The default {@link Transport}, which uses the JVM's built-in {@link URLConnection} support. The
+ * JVM retains idle HTTP connections for reuse (as long as responses are read in full and closed);
+ * its pool is configured via system properties, which the JVM reads when the first connection is
+ * made, so {@link #configure} is called before then (see {@link Connector#transport}).
+ */
+public class URLConnectionTransport implements Transport
+{
+    @Override public URLConnection open (URL url, Proxy proxy) throws IOException
+    {
+        return (proxy == null) ? url.openConnection() : url.openConnection(proxy);
+    }
+
+    @Override public void configure (int maxConnections, int idleTimeout)
+    {
+        // don't override any configuration supplied on the command line
+        if (maxConnections > 0) {
+            setDefault("http.maxConnections", String.valueOf(maxConnections));
+        }
+        if (idleTimeout > 0) {
+            setDefault("http.keepAlive.time.server", String.valueOf(idleTimeout));
+            setDefault("http.keepAlive.time.proxy", String.valueOf(idleTimeout));
+        }
+    }
+
+    protected static void setDefault (String key, String value)
+    {
+        if (System.getProperty(key) == null) {
+            log.info("Configuring HTTP connection pool", key, value);
+            System.setProperty(key, value);
+        }
+    }
+}
@@ -16,10 +16,12 @@ import java.security.PrivateKey;
 import java.security.Signature;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.threerings.getdown.data.Application;
 import com.threerings.getdown.data.Digest;
+import com.threerings.getdown.data.DigestCache;
 import com.threerings.getdown.data.EnvConfig;
 import com.threerings.getdown.data.Resource;
 import com.threerings.getdown.util.Base64;
@@ -38,28 +40,61 @@ public class Digester
     public static void main (String[] args)
         throws IOException, GeneralSecurityException
     {
+        // an optional stat file enables incremental digesting
+        File statFile = null;
+        if (args.length > 1 && args[0].equals("-stats")) {
+            statFile = new File(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
         switch (args.length) {
         case 1:
-            createDigests(new File(args[0]), null, null, null);
+            createDigests(new File(args[0]), null, null, null, statFile);
             break;
         case 4:
-            createDigests(new File(args[0]), new File(args[1]), args[2], args[3]);
+            createDigests(new File(args[0]), new File(args[1]), args[2], args[3], statFile);
             break;
         default:
-            System.err.println("Usage: Digester app_dir [keystore_path password alias]");
+            System.err.println(
+                "Usage: Digester [-stats stat_file] app_dir [keystore_path password alias]");
             System.exit(255);
         }
     }
 
     /**
-     * Creates digest file(s) and optionally signs them if {@code keystore} is not null.
+     * Creates digest file(s) and optionally signs them if {@code keystore} is not null. A digest
+     * file is created for each of the versions listed in the app's {@code digest_versions} config
+     * (versions 1 and 2 by default).
      */
     public static void createDigests (File appdir, File keystore, String password, String alias)
         throws IOException, GeneralSecurityException
     {
-        for (int version = 1; version <= Digest.VERSION; version++) {
-            createDigest(version, appdir);
-            if (keystore != null) {
+        createDigests(appdir, keystore, password, alias, null);
+    }
+
+    /**
+     * Creates digest file(s) as {@link #createDigests(File,File,String,String)} does. If
+     * {@code statFile} is not null, the size, modification time and digest of every hashed
+     * resource are recorded therein, and resources which are unchanged since the previous run are
+     * not hashed again. The stat file should be kept out of the deployed application directory.
+     */
+    public static void createDigests (File appdir, File keystore, String password, String alias,
+                                      File statFile)
+        throws IOException, GeneralSecurityException
+    {
+        EnvConfig envc = new EnvConfig(appdir);
+        Application app = new Application(envc);
+        app.initBase(Application.readConfig(envc, false));
+        DigestCache cache = (statFile == null) ? null : new DigestCache(statFile);
+        try {
+            createDigests(app.digestVersions(), appdir, cache);
+        } finally {
+            if (cache != null) {
+                cache.save();
+            }
+        }
+        if (keystore != null) {
+            for (int version : app.digestVersions()) {
                 signDigest(version, appdir, keystore, password, alias);
             }
         }
@@ -71,8 +106,31 @@ public class Digester
     public static void createDigest (int version, File appdir)
         throws IOException
     {
-        File target = new File(appdir, Digest.digestFile(version));
-        System.out.println("Generating digest file '" + target + "'...");
+        createDigest(version, appdir, null);
+    }
+
+    /**
+     * Creates a digest file in the specified application directory, reusing the digests in
+     * {@code cache} (if not null) for resources which are unchanged since they were last hashed.
+     */
+    public static void createDigest (int version, File appdir, DigestCache cache)
+        throws IOException
+    {
+        createDigests(new int[] { version }, appdir, cache);
+    }
+
+    /**
+     * Creates a digest file in the specified application directory for each of the specified
+     * digest protocol versions, reading each resource only once. Digests in {@code cache} (if not
+     * null) are reused for resources which are unchanged since they were last hashed.
+     */
+    public static void createDigests (int[] versions, File appdir, DigestCache cache)
+        throws IOException
+    {
+        for (int version : versions) {
+            File target = new File(appdir, Digest.digestFile(version));
+            System.out.println("Generating digest file '" + target + "'...");
+        }
 
         // create our application and instruct it to parse its business
         EnvConfig envc = new EnvConfig(appdir);
@@ -93,8 +151,14 @@ public class Digester
         // reinit app just to verify that getdown.txt has valid format
         app.init(true);
 
-        // now generate the digest file
-        Digest.createDigest(version, rsrcs, target);
+        // now generate the digest files
+        Digest.createDigests(versions, rsrcs, appdir, app.chunkManifestThreshold(),
+                             app.chunkManifestChunkSize(), cache);
+
+        // finally load each digest file as a client would, which validates it and writes its index
+        for (int version : versions) {
+            new Digest(appdir, version, app.strictComments());
+        }
     }
 
     /**
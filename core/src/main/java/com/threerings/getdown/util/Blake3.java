@@ -0,0 +1,450 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pure Java implementation of the <a href="https://github.com/BLAKE3-team/BLAKE3">BLAKE3</a>
+ * hash function (in its default, unkeyed mode), producing a 256-bit digest. Being a
+ * {@link MessageDigest}, it can be used anywhere the JVM's built-in digests are used.
+ */
+public class Blake3 extends MessageDigest implements Cloneable
+{
+    /** The name of the algorithm implemented by this digest. */
+    public static final String ALGORITHM = "BLAKE3";
+
+    /** The length of the digest, in bytes. */
+    public static final int DIGEST_LENGTH = 32;
+
+    /**
+     * Computes the BLAKE3 digest of the contents of {@code channel}. As BLAKE3 is a tree hash,
+     * the subtrees of a large input can be hashed independently, which we do on {@code pool}.
+     *
+     * @param obs if non-null, notified of our progress (from whichever thread makes it).
+     */
+    public static byte[] digest (FileChannel channel, ForkJoinPool pool, ProgressObserver obs)
+        throws IOException
+    {
+        long size = channel.size();
+        long chunks = Math.max(1L, (size + CHUNK_LEN - 1) / CHUNK_LEN);
+        if (chunks == 1) {
+            byte[] data = read(channel, 0L, (int)size);
+            Blake3 md = new Blake3();
+            md.update(data);
+            return md.digest();
+        }
+
+        SubtreeHasher root = new SubtreeHasher(channel, size, 0L, chunks, obs, new AtomicLong());
+        int[] words = new int[16], out = new int[8];
+        try {
+            root.splitAndHash(pool, words);
+        } catch (RuntimeException re) {
+            // the pool may rewrap our exception, so dig down to the I/O error that caused it
+            for (Throwable t = re; t != null; t = t.getCause()) {
+                if (t instanceof IOException) throw (IOException)t;
+            }
+            throw re;
+        }
+        compress(IV, words, 0L, BLOCK_LEN, PARENT | ROOT, out);
+        return toBytes(out);
+    }
+
+    public Blake3 ()
+    {
+        super(ALGORITHM);
+        engineReset();
+    }
+
+    @Override public Object clone () throws CloneNotSupportedException
+    {
+        Blake3 copy = (Blake3)super.clone();
+        copy._cv = _cv.clone();
+        copy._block = _block.clone();
+        copy._words = new int[16];
+        copy._cvStack = new int[_cvStack.length][];
+        for (int ii = 0; ii < _stackSize; ii++) {
+            copy._cvStack[ii] = _cvStack[ii].clone();
+        }
+        return copy;
+    }
+
+    @Override protected int engineGetDigestLength ()
+    {
+        return DIGEST_LENGTH;
+    }
+
+    @Override protected void engineReset ()
+    {
+        System.arraycopy(IV, 0, _cv, 0, 8);
+        _chunkCounter = 0L;
+        _blockLen = 0;
+        _blocksCompressed = 0;
+        _stackSize = 0;
+    }
+
+    @Override protected void engineUpdate (byte input)
+    {
+        engineUpdate(new byte[] { input }, 0, 1);
+    }
+
+    @Override protected void engineUpdate (byte[] input, int offset, int len)
+    {
+        while (len > 0) {
+            // if the current chunk is complete and there's more input, finalize it and add its
+            // chaining value to the tree; a complete chunk is not finalized until we know that
+            // more input is coming, as the final chunk is compressed differently
+            if (_blocksCompressed * BLOCK_LEN + _blockLen == CHUNK_LEN) {
+                int[] chunkCV = new int[8];
+                compress(_cv, blockWords(), _chunkCounter, BLOCK_LEN, chunkFlags() | CHUNK_END,
+                         chunkCV);
+                addChunkChainingValue(chunkCV, ++_chunkCounter);
+                System.arraycopy(IV, 0, _cv, 0, 8);
+                _blockLen = 0;
+                _blocksCompressed = 0;
+            }
+            // similarly, only compress a full block once we know it's not the last in its chunk
+            if (_blockLen == BLOCK_LEN) {
+                compress(_cv, blockWords(), _chunkCounter, BLOCK_LEN, chunkFlags(), _cv);
+                _blocksCompressed++;
+                _blockLen = 0;
+            }
+            // compress full blocks straight out of the input when we know they're not last
+            if (_blockLen == 0 && len > BLOCK_LEN && _blocksCompressed < BLOCKS_PER_CHUNK - 1) {
+                compress(_cv, toWords(input, offset, _words), _chunkCounter, BLOCK_LEN,
+                         chunkFlags(), _cv);
+                _blocksCompressed++;
+                offset += BLOCK_LEN;
+                len -= BLOCK_LEN;
+                continue;
+            }
+            int take = Math.min(BLOCK_LEN - _blockLen, len);
+            System.arraycopy(input, offset, _block, _blockLen, take);
+            _blockLen += take;
+            offset += take;
+            len -= take;
+        }
+    }
+
+    @Override protected byte[] engineDigest ()
+    {
+        // the output of the final chunk is merged up the right edge of the tree, with the root
+        // node being compressed with the ROOT flag
+        Arrays.fill(_block, _blockLen, BLOCK_LEN, (byte)0);
+        int[] inputCV = _cv.clone(), words = blockWords();
+        long counter = _chunkCounter;
+        int blockLen = _blockLen, flags = chunkFlags() | CHUNK_END;
+        for (int ii = _stackSize - 1; ii >= 0; ii--) {
+            int[] cv = new int[8];
+            compress(inputCV, words, counter, blockLen, flags, cv);
+            System.arraycopy(_cvStack[ii], 0, words, 0, 8);
+            System.arraycopy(cv, 0, words, 8, 8);
+            System.arraycopy(IV, 0, inputCV, 0, 8);
+            counter = 0L;
+            blockLen = BLOCK_LEN;
+            flags = PARENT;
+        }
+        int[] out = new int[8];
+        compress(inputCV, words, 0L, blockLen, flags | ROOT, out);
+        engineReset();
+        return toBytes(out);
+    }
+
+    /**
+     * Computes the chaining value of a subtree of the input: a range of chunks whose length is a
+     * power of two (except for the rightmost subtree, which gets whatever input remains). Large
+     * subtrees are split in two and the halves hashed in parallel.
+     */
+    protected static class SubtreeHasher extends RecursiveTask<int[]>
+    {
+        public SubtreeHasher (FileChannel channel, long size, long start, long chunks,
+                              ProgressObserver obs, AtomicLong hashed) {
+            _channel = channel;
+            _size = size;
+            _start = start;
+            _chunks = chunks;
+            _obs = obs;
+            _hashed = hashed;
+        }
+
+        /**
+         * Hashes the left and right subtrees of this subtree (in parallel on {@code pool}) and
+         * fills {@code words} with the parent block formed from their chaining values.
+         */
+        public void splitAndHash (ForkJoinPool pool, int[] words) {
+            long left = largestPowerOfTwoBelow(_chunks);
+            SubtreeHasher lhasher = subtree(_start, left);
+            SubtreeHasher rhasher = subtree(_start + left, _chunks - left);
+            if (pool == null) {
+                lhasher.fork();
+                System.arraycopy(rhasher.compute(), 0, words, 8, 8);
+            } else {
+                pool.execute(lhasher);
+                System.arraycopy(pool.invoke(rhasher), 0, words, 8, 8);
+            }
+            System.arraycopy(lhasher.join(), 0, words, 0, 8);
+        }
+
+        @Override protected int[] compute () {
+            int[] cv = new int[8];
+            if (_chunks * CHUNK_LEN > PARALLEL_SUBTREE_SIZE) {
+                int[] words = new int[16];
+                splitAndHash(null, words);
+                compress(IV, words, 0L, BLOCK_LEN, PARENT, cv);
+                return cv;
+            }
+
+            long offset = _start * CHUNK_LEN;
+            int length = (int)Math.min(_chunks * CHUNK_LEN, _size - offset);
+            byte[] data;
+            try {
+                data = read(_channel, offset, length);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            hashSubtree(data, 0, length, _start, _chunks, new int[16], cv);
+
+            if (_obs != null) {
+                int percent = (int)(100 * _hashed.addAndGet(length) / _size);
+                synchronized (_obs) {
+                    _obs.progress(percent);
+                }
+            }
+            return cv;
+        }
+
+        protected SubtreeHasher subtree (long start, long chunks) {
+            return new SubtreeHasher(_channel, _size, start, chunks, _obs, _hashed);
+        }
+
+        protected final FileChannel _channel;
+        protected final long _size, _start, _chunks;
+        protected final ProgressObserver _obs;
+        protected final AtomicLong _hashed;
+    }
+
+    /**
+     * Computes the (non-root) chaining value of the subtree comprising the {@code chunks} chunks of
+     * input in {@code data} starting at {@code offset}, the first of which is chunk number
+     * {@code counter} of the input as a whole.
+     */
+    protected static void hashSubtree (byte[] data, int offset, int length, long counter,
+                                       long chunks, int[] words, int[] cv)
+    {
+        if (chunks == 1) {
+            System.arraycopy(IV, 0, cv, 0, 8);
+            int blocks = Math.max(1, (length + BLOCK_LEN - 1) / BLOCK_LEN);
+            for (int bb = 0; bb < blocks; bb++) {
+                int flags = (bb == 0 ? CHUNK_START : 0) | (bb == blocks - 1 ? CHUNK_END : 0);
+                int blen = Math.min(BLOCK_LEN, length - bb * BLOCK_LEN);
+                if (blen == BLOCK_LEN) {
+                    toWords(data, offset + bb * BLOCK_LEN, words);
+                } else {
+                    byte[] last = new byte[BLOCK_LEN];
+                    System.arraycopy(data, offset + bb * BLOCK_LEN, last, 0, blen);
+                    toWords(last, 0, words);
+                }
+                compress(cv, words, counter, blen, flags, cv);
+            }
+            return;
+        }
+
+        long left = largestPowerOfTwoBelow(chunks);
+        int llength = (int)(left * CHUNK_LEN);
+        int[] lcv = new int[8], rcv = new int[8];
+        hashSubtree(data, offset, llength, counter, left, words, lcv);
+        hashSubtree(data, offset + llength, length - llength, counter + left, chunks - left,
+                    words, rcv);
+        System.arraycopy(lcv, 0, words, 0, 8);
+        System.arraycopy(rcv, 0, words, 8, 8);
+        compress(IV, words, 0L, BLOCK_LEN, PARENT, cv);
+    }
+
+    /** Returns the largest power of two strictly less than {@code value}, which must exceed 1. */
+    protected static long largestPowerOfTwoBelow (long value)
+    {
+        return Long.highestOneBit(value - 1);
+    }
+
+    /** Reads {@code length} bytes from {@code channel} starting at {@code position}. */
+    protected static byte[] read (FileChannel channel, long position, int length)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File truncated while hashing");
+            }
+        }
+        return buffer.array();
+    }
+
+    /** Converts the supplied words into (little-endian) bytes. */
+    protected static byte[] toBytes (int[] words)
+    {
+        byte[] bytes = new byte[4 * words.length];
+        for (int ii = 0; ii < words.length; ii++) {
+            int word = words[ii];
+            bytes[4*ii] = (byte)word;
+            bytes[4*ii+1] = (byte)(word >>> 8);
+            bytes[4*ii+2] = (byte)(word >>> 16);
+            bytes[4*ii+3] = (byte)(word >>> 24);
+        }
+        return bytes;
+    }
+
+    /** Returns the flags with which to compress a block of the current chunk. */
+    protected int chunkFlags ()
+    {
+        return (_blocksCompressed == 0) ? CHUNK_START : 0;
+    }
+
+    /** Converts the current block into words, in a reused array. */
+    protected int[] blockWords ()
+    {
+        return toWords(_block, 0, _words);
+    }
+
+    /** Converts the (little-endian) 64 byte block at {@code offset} in {@code data} into words. */
+    protected static int[] toWords (byte[] data, int offset, int[] words)
+    {
+        for (int ii = 0; ii < 16; ii++, offset += 4) {
+            words[ii] = (data[offset] & 0xFF) | (data[offset+1] & 0xFF) << 8 |
+                (data[offset+2] & 0xFF) << 16 | (data[offset+3] & 0xFF) << 24;
+        }
+        return words;
+    }
+
+    /**
+     * Adds the chaining value of a completed chunk to the tree, first merging it with the
+     * chaining values of any completed subtrees of the same size. The number of trailing zero bits
+     * in {@code totalChunks} is the number of subtrees that are completed by this chunk.
+     */
+    protected void addChunkChainingValue (int[] cv, long totalChunks)
+    {
+        int[] words = new int[16];
+        while ((totalChunks & 1) == 0) {
+            System.arraycopy(_cvStack[--_stackSize], 0, words, 0, 8);
+            System.arraycopy(cv, 0, words, 8, 8);
+            compress(IV, words, 0L, BLOCK_LEN, PARENT, cv);
+            totalChunks >>= 1;
+        }
+        if (_cvStack[_stackSize] == null) {
+            _cvStack[_stackSize] = new int[8];
+        }
+        System.arraycopy(cv, 0, _cvStack[_stackSize++], 0, 8);
+    }
+
+    /**
+     * Compresses the 16 word block {@code m} into the chaining value {@code cv}, writing the
+     * first 8 words of the output (which is all we ever use) into {@code out}, which may be the
+     * same array as {@code cv}.
+     */
+    protected static void compress (int[] cv, int[] m, long counter, int blockLen, int flags,
+                                    int[] out)
+    {
+        int v0 = cv[0], v1 = cv[1], v2 = cv[2], v3 = cv[3];
+        int v4 = cv[4], v5 = cv[5], v6 = cv[6], v7 = cv[7];
+        int v8 = IV[0], v9 = IV[1], v10 = IV[2], v11 = IV[3];
+        int v12 = (int)counter, v13 = (int)(counter >>> 32), v14 = blockLen, v15 = flags;
+
+        int m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3], m4 = m[4], m5 = m[5], m6 = m[6];
+        int m7 = m[7], m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11], m12 = m[12];
+        int m13 = m[13], m14 = m[14], m15 = m[15];
+
+        for (int round = 0; round < 7; round++) {
+            // mix the columns
+            v0 += v4 + m0; v12 = Integer.rotateRight(v12 ^ v0, 16);
+            v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+            v0 += v4 + m1; v12 = Integer.rotateRight(v12 ^ v0, 8);
+            v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+
+            v1 += v5 + m2; v13 = Integer.rotateRight(v13 ^ v1, 16);
+            v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+            v1 += v5 + m3; v13 = Integer.rotateRight(v13 ^ v1, 8);
+            v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+
+            v2 += v6 + m4; v14 = Integer.rotateRight(v14 ^ v2, 16);
+            v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+            v2 += v6 + m5; v14 = Integer.rotateRight(v14 ^ v2, 8);
+            v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+
+            v3 += v7 + m6; v15 = Integer.rotateRight(v15 ^ v3, 16);
+            v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+            v3 += v7 + m7; v15 = Integer.rotateRight(v15 ^ v3, 8);
+            v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+
+            // mix the diagonals
+            v0 += v5 + m8; v15 = Integer.rotateRight(v15 ^ v0, 16);
+            v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+            v0 += v5 + m9; v15 = Integer.rotateRight(v15 ^ v0, 8);
+            v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+
+            v1 += v6 + m10; v12 = Integer.rotateRight(v12 ^ v1, 16);
+            v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+            v1 += v6 + m11; v12 = Integer.rotateRight(v12 ^ v1, 8);
+            v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+
+            v2 += v7 + m12; v13 = Integer.rotateRight(v13 ^ v2, 16);
+            v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+            v2 += v7 + m13; v13 = Integer.rotateRight(v13 ^ v2, 8);
+            v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+
+            v3 += v4 + m14; v14 = Integer.rotateRight(v14 ^ v3, 16);
+            v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+            v3 += v4 + m15; v14 = Integer.rotateRight(v14 ^ v3, 8);
+            v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+            // permute the message words for the next round (per the BLAKE3 message permutation
+            // 2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8)
+            int t0 = m0, t1 = m1, t2 = m2, t3 = m3, t4 = m4, t5 = m5, t6 = m6, t7 = m7;
+            int t8 = m8, t9 = m9, t10 = m10, t11 = m11, t12 = m12, t13 = m13, t14 = m14;
+            int t15 = m15;
+            m0 = t2; m1 = t6; m2 = t3; m3 = t10;
+            m4 = t7; m5 = t0; m6 = t4; m7 = t13;
+            m8 = t1; m9 = t11; m10 = t12; m11 = t5;
+            m12 = t9; m13 = t14; m14 = t15; m15 = t8;
+        }
+
+        out[0] = v0 ^ v8; out[1] = v1 ^ v9; out[2] = v2 ^ v10; out[3] = v3 ^ v11;
+        out[4] = v4 ^ v12; out[5] = v5 ^ v13; out[6] = v6 ^ v14; out[7] = v7 ^ v15;
+    }
+
+    protected int[] _cv = new int[8];
+    protected byte[] _block = new byte[BLOCK_LEN];
+    protected int[] _words = new int[16];
+    protected long _chunkCounter;
+    protected int _blockLen, _blocksCompressed;
+
+    /** The chaining values of completed subtrees; 54 levels suffice for 2^64 bytes of input. */
+    protected int[][] _cvStack = new int[54][];
+    protected int _stackSize;
+
+    protected static final int BLOCK_LEN = 64;
+    protected static final int CHUNK_LEN = 1024;
+    protected static final int BLOCKS_PER_CHUNK = CHUNK_LEN / BLOCK_LEN;
+
+    /** Subtrees with more than this many bytes of input are split and hashed in parallel. */
+    protected static final long PARALLEL_SUBTREE_SIZE = 1024 * 1024;
+
+    protected static final int CHUNK_START = 1 << 0;
+    protected static final int CHUNK_END = 1 << 1;
+    protected static final int PARENT = 1 << 2;
+    protected static final int ROOT = 1 << 3;
+
+    protected static final int[] IV = {
+        0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+        0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+}
@@ -14,6 +14,7 @@ import java.util.zip.*;
 
 import com.threerings.getdown.Log;
 import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * File related utilities.
@@ -49,7 +50,11 @@ public final class FileUtil
             }
         }
 
-        // as a last resort, try copying the old data over the new
+        // as a last resort, try copying the old data over the new; we delete the old file first as
+        // it may be a hard link to (say) a file in the code cache, which must not be changed
+        if (dest.exists() && !deleteHarder(dest)) {
+            log.warning("Failed to delete " + dest + " before brute force copy from " + source);
+        }
         try {
             copy(source, dest);
         } catch (IOException ioe) {
@@ -119,7 +124,120 @@ public final class FileUtil
     public static void unpackJar (ZipFile jar, File target, boolean cleanExistingDirs)
         throws IOException
     {
-        if (cleanExistingDirs) {
+        unpackJar(jar, target, cleanExistingDirs, null);
+    }
+
+    /**
+     * Unpacks the specified jar file into the specified target directory, incrementally if {@code
+     * manifest} is non-null. The name, CRC and size of each unpacked entry (and the modification
+     * time of the file to which it was unpacked) are recorded in {@code manifest}. When the jar is
+     * next unpacked, entries which are unchanged (and whose files are untouched) since then are not
+     * rewritten, and the files of entries which are no longer in the jar are deleted.
+     *
+     * @param cleanExistingDirs if true, all files and subdirectories in all directories contained
+     * in {@code jar} will be deleted prior to unpacking the jar. If a manifest from a previous
+     * unpacking exists, only the files of entries that have since been removed are deleted.
+     * @param manifest the file in which to record the unpacked entries, or null.
+     */
+    public static void unpackJar (final ZipFile jar, File target, boolean cleanExistingDirs,
+                                  File manifest)
+        throws IOException
+    {
+        unpackJar(jar, target, cleanExistingDirs, manifest, new EntryWriter() {
+            public void write (ZipEntry entry, File efile) throws IOException {
+                try (BufferedOutputStream fout = new BufferedOutputStream(Files.newOutputStream(efile.toPath()));
+                     InputStream jin = jar.getInputStream(entry)) {
+                    StreamUtil.copy(jin, fout);
+                } catch (Exception e) {
+                    throw new IOException(
+                        Log.format("Failure unpacking", "jar", jar, "entry", efile), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Unpacks {@code jar} into {@code target} as {@link #unpackJar(ZipFile,File,boolean,File)}
+     * does, but moves the files previously extracted into {@code staging} (as the jar was
+     * downloaded) into place rather than extracting them anew.
+     *
+     * @return false, having changed nothing, if {@code staging} does not contain a file of the
+     * expected size and CRC (per {@code jar}'s central directory) for every file entry in {@code
+     * jar}.
+     */
+    public static boolean commitStagedJar (ZipFile jar, final File staging, File target,
+                                           boolean cleanExistingDirs, File manifest)
+        throws IOException
+    {
+        Set<String> names = new HashSet<>();
+        Enumeration<? extends ZipEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!names.add(entry.getName())) {
+                log.warning("Staged jar has duplicate entry", "jar", jar.getName(), "entry", entry);
+                return false;
+            }
+            if (entry.isDirectory()) continue;
+            File sfile = new File(staging, entry.getName());
+            if (!sfile.isFile() || sfile.length() != entry.getSize()) {
+                log.info("Staged jar is incomplete", "jar", jar.getName(), "entry", entry);
+                return false;
+            }
+            if (crc(sfile) != entry.getCrc()) {
+                log.warning("Staged file does not match jar", "jar", jar.getName(),
+                            "entry", entry);
+                return false;
+            }
+        }
+        unpackJar(jar, target, cleanExistingDirs, manifest, new EntryWriter() {
+            public void write (ZipEntry entry, File efile) throws IOException {
+                File sfile = new File(staging, entry.getName());
+                if (!renameTo(sfile, efile)) {
+                    throw new IOException("Failed to move " + sfile + " to " + efile);
+                }
+            }
+        });
+        deleteDirHarder(staging);
+        return true;
+    }
+
+    /**
+     * Computes the CRC-32 checksum of the contents of {@code file}.
+     */
+    protected static long crc (File file)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /** Places the contents of a jar entry into the file to which it is unpacked. */
+    protected interface EntryWriter
+    {
+        void write (ZipEntry entry, File efile) throws IOException;
+    }
+
+    protected static void unpackJar (ZipFile jar, File target, boolean cleanExistingDirs,
+                                     File manifest, EntryWriter writer)
+        throws IOException
+    {
+        Map<String, UnpackedEntry> previous = null;
+        if (manifest != null && manifest.exists()) {
+            previous = readUnpackManifest(manifest);
+            // if we fail part way through, we must not trust the files described by the manifest
+            if (!deleteHarder(manifest)) {
+                throw new IOException("Failed to delete unpack manifest " + manifest);
+            }
+        }
+
+        if (cleanExistingDirs && previous == null) {
             Enumeration<? extends ZipEntry> entries = jar.entries();
             while (entries.hasMoreElements()) {
                 ZipEntry entry = entries.nextElement();
@@ -132,6 +250,8 @@ public final class FileUtil
             }
         }
 
+        Map<String, UnpackedEntry> unpacked = new HashMap<>();
+        int skipped = 0;
         Enumeration<? extends ZipEntry> entries = jar.entries();
         while (entries.hasMoreElements()) {
             ZipEntry entry = entries.nextElement();
@@ -154,16 +274,47 @@ public final class FileUtil
                 continue;
             }
 
-            try (BufferedOutputStream fout = new BufferedOutputStream(Files.newOutputStream(efile.toPath()));
-                 InputStream jin = jar.getInputStream(entry)) {
-                StreamUtil.copy(jin, fout);
-            } catch (Exception e) {
-                throw new IOException(
-                    Log.format("Failure unpacking", "jar", jar, "entry", efile), e);
+            // skip entries that are unchanged since we last unpacked them
+            UnpackedEntry prev = (previous == null) ? null : previous.remove(entry.getName());
+            if (prev != null && prev.matches(entry, efile)) {
+                unpacked.put(entry.getName(), prev);
+                skipped++;
+                continue;
+            }
+
+            writer.write(entry, efile);
+            if (manifest != null) {
+                unpacked.put(entry.getName(), new UnpackedEntry(
+                    entry.getCrc(), entry.getSize(), efile.lastModified()));
+            }
+        }
+
+        if (previous != null) {
+            // delete the files of entries that are no longer in the jar
+            for (String name : previous.keySet()) {
+                File efile = new File(target, name);
+                if (!unpacked.containsKey(name) && isAncestor(target, efile) && efile.isFile() &&
+                    !deleteHarder(efile)) {
+                    log.warning("Failed to delete removed jar entry", "jar", jar, "entry", efile);
+                }
             }
+            log.info("Unpacked jar incrementally", "jar", jar.getName(), "entries", unpacked.size(),
+                     "skipped", skipped);
+        }
+        if (manifest != null) {
+            writeUnpackManifest(manifest, unpacked);
         }
     }
 
+    /**
+     * Returns true if {@code dir} is {@code file} or a directory which (transitively) contains it.
+     * Only the (absolute) paths of the files are compared, the file system is not consulted.
+     */
+    public static boolean isAncestor (File dir, File file) {
+        return file.getAbsoluteFile().toPath().normalize().startsWith(
+            dir.getAbsoluteFile().toPath().normalize());
+    }
+
     /**
      * Copies the given {@code source} file to the given {@code target}.
      */
@@ -174,6 +325,88 @@ public final class FileUtil
         }
     }
 
+    /** The means by which {@link #linkOrCopy} placed a file. */
+    public enum LinkType { HARD_LINK, CLONE, COPY }
+
+    /**
+     * Places a copy of {@code source} at {@code target} (which must not exist) as cheaply as
+     * possible: via a hard link if the file system supports them, otherwise via a copy-on-write
+     * clone if the file system supports those, otherwise via a plain copy. A linked file shares its
+     * data with its source, so neither may be modified in place thereafter (Getdown replaces files
+     * by moving new files over them, see {@link #renameTo}, and repairs a copy of a linked file,
+     * see {@link #linkCount}). Files are always copied on Windows, where a hard linked file can't
+     * be replaced while its link is open.
+     */
+    public static LinkType linkOrCopy (File source, File target) throws IOException {
+        if (hardLink(source, target)) {
+            return LinkType.HARD_LINK;
+        }
+        if (!LaunchUtil.isWindows() && source.length() >= MIN_CLONE_SIZE &&
+            cloneFile(source, target)) {
+            return LinkType.CLONE;
+        }
+        copy(source, target);
+        return LinkType.COPY;
+    }
+
+    /**
+     * Hard links {@code target} (which must not exist) to {@code source}, if the file system
+     * supports hard links. Files are never hard linked on Windows (see {@link #linkOrCopy}).
+     * @return true if the link was created.
+     */
+    public static boolean hardLink (File source, File target) {
+        if (LaunchUtil.isWindows()) {
+            return false;
+        }
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of hard links to {@code file}, or 1 if that can't be determined.
+     */
+    public static int linkCount (File file) {
+        try {
+            return (Integer)Files.getAttribute(file.toPath(), "unix:nlink");
+        } catch (Exception e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Clones {@code source} into {@code target} via {@code cp}, on the file systems which support
+     * copy-on-write clones (btrfs, XFS and APFS, for example).
+     */
+    protected static boolean cloneFile (File source, File target) {
+        String flag = LaunchUtil.isLinux() ? "--reflink=always" :
+            (LaunchUtil.isMacOS() ? "-c" : null);
+        if (flag == null || _cloneUnsupported) {
+            return false;
+        }
+        try {
+            Process proc = new ProcessBuilder(
+                "cp", flag, source.getPath(), target.getPath()).redirectErrorStream(true).start();
+            try (InputStream in = proc.getInputStream()) {
+                StreamUtil.copy(in, new ByteArrayOutputStream());
+            }
+            if (proc.waitFor() == 0) {
+                return true;
+            }
+        } catch (IOException | InterruptedException e) {
+            log.info("Unable to clone file", "source", source, "error", e);
+        }
+        // if one clone fails, they'll all fail, so don't waste time spawning processes
+        _cloneUnsupported = true;
+        if (target.exists()) {
+            deleteHarder(target);
+        }
+        return false;
+    }
+
     /**
      * Marks {@code file} as executable, if it exists. Catches and logs any errors that occur.
      */
@@ -258,4 +491,80 @@ public final class FileUtil
 
         return foundFilePaths;
     }
+
+    /** Describes an entry recorded in an unpack manifest (see {@link #unpackJar}). */
+    protected static final class UnpackedEntry
+    {
+        public final long crc, size, lastModified;
+
+        public UnpackedEntry (long crc, long size, long lastModified) {
+            this.crc = crc;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /** Returns true if {@code entry} is unchanged since this entry was unpacked into {@code
+          * file}, and {@code file} is untouched since then. */
+        public boolean matches (ZipEntry entry, File file) {
+            return crc != -1L && size != -1L && crc == entry.getCrc() &&
+                size == entry.getSize() && file.length() == size &&
+                file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * Reads the entries recorded in an unpack manifest, or returns null if it is unreadable (in
+     * which case the jar must be unpacked, and cleaned, as if it had no manifest).
+     */
+    protected static Map<String, UnpackedEntry> readUnpackManifest (File manifest)
+    {
+        Map<String, UnpackedEntry> entries = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(manifest), UTF_8))) {
+            if (!UNPACK_MANIFEST_HEADER.equals(in.readLine())) {
+                log.info("Ignoring unpack manifest with unknown format", "file", manifest);
+                return null;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] bits = line.split("\t", 4);
+                if (bits.length != 4) continue;
+                entries.put(bits[3], new UnpackedEntry(
+                    Long.parseLong(bits[0]), Long.parseLong(bits[1]), Long.parseLong(bits[2])));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // an unreadable manifest just means that everything will be unpacked anew
+            log.warning("Failed to read unpack manifest", "file", manifest, "error", e);
+            return null;
+        }
+        return entries;
+    }
+
+    protected static void writeUnpackManifest (File manifest, Map<String, UnpackedEntry> entries)
+        throws IOException
+    {
+        File temp = new File(manifest.getPath() + "_new");
+        try (PrintWriter out = new PrintWriter(
+                 new OutputStreamWriter(new FileOutputStream(temp), UTF_8))) {
+            out.println(UNPACK_MANIFEST_HEADER);
+            for (Map.Entry<String, UnpackedEntry> entry : entries.entrySet()) {
+                UnpackedEntry e = entry.getValue();
+                out.println(e.crc + "\t" + e.size + "\t" + e.lastModified + "\t" +
+                            entry.getKey());
+            }
+        }
+        if (!renameTo(temp, manifest)) {
+            throw new IOException("Failed to move " + temp + " to " + manifest);
+        }
+    }
+
+    /** Set once cloning a file has failed, after which we no longer try. */
+    protected static volatile boolean _cloneUnsupported;
+
+    /** Files smaller than this are copied rather than cloned, as copying them is cheaper than
+      * spawning a process to clone them. */
+    protected static final long MIN_CLONE_SIZE = 4 * 1024 * 1024L;
+
+    /** The first line of an unpack manifest, which identifies its format. */
+    protected static final String UNPACK_MANIFEST_HEADER = "# getdown unpack manifest 1";
 }
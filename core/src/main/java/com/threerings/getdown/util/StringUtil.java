@@ -155,6 +155,27 @@ public final class StringUtil {
         return (bytes == null) ? "" : hexlate(bytes, bytes.length);
     }
 
+    /**
+     * Converts a HEX encoded string (as generated by {@link #hexlate}) back into bytes. Returns
+     * null if the string is not a valid HEX encoding (either case is accepted).
+     */
+    public static byte[] unhexlate (String hex)
+    {
+        if (hex == null || hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length()/2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2*i), 16);
+            int lo = Character.digit(hex.charAt(2*i+1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte)(hi * 16 + lo);
+        }
+        return bytes;
+    }
+
     /**
      * Joins an array of strings (or objects which will be converted to strings) into a single
      * string separated by commas.
@@ -15,6 +15,9 @@ import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+
+import com.threerings.getdown.util.FileUtil;
+
 import static org.junit.Assert.*;
 import static org.junit.Assume.assumeTrue;
 
@@ -77,7 +80,24 @@ public class GarbageCollectorTest
         assertFalse(_lastAccessedFile.exists());
     }
 
+    @Test public void shouldKeepCachedFileWhileLinkedIntoApp () throws IOException
+    {
+        File appFile = new File(_appFolder.getRoot(), "code" + extension);
+        assumeTrue(FileUtil.linkOrCopy(_cachedFile, appFile) == FileUtil.LinkType.HARD_LINK);
+        assumeTrue(_lastAccessedFile.setLastModified(
+            System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+
+        GarbageCollector.collect(_folder.getRoot(), TimeUnit.DAYS.toMillis(1));
+        assertTrue(_cachedFile.exists());
+
+        // once the app no longer uses the file, it is collected
+        assumeTrue(appFile.delete());
+        GarbageCollector.collect(_folder.getRoot(), TimeUnit.DAYS.toMillis(1));
+        assertFalse(_cachedFile.exists());
+    }
+
     @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+    @Rule public final TemporaryFolder _appFolder = new TemporaryFolder();
 
     private File _cachedFile;
     private File _lastAccessedFile;
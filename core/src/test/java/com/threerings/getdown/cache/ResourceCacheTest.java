@@ -7,6 +7,7 @@ package com.threerings.getdown.cache;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.TimeUnit;
@@ -16,6 +17,9 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import static org.junit.Assert.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.threerings.getdown.util.FileUtil;
 
 /**
  * Asserts the correct functionality of the {@link ResourceCache}.
@@ -75,6 +79,39 @@ public class ResourceCacheTest
         assertTrue(lastAccessedFile.lastModified() > lastAccessed);
     }
 
+    @Test public void shouldRecacheReplacedFile () throws Exception
+    {
+        write(_fileToCache, "original");
+        File cachedFile = cacheFile();
+        boolean linked = Files.isSameFile(cachedFile.toPath(), _fileToCache.toPath());
+
+        // a fresh copy of the file (of a different size) always replaces the cached file
+        replaceFileToCache("repaired!");
+        assertEquals("repaired!", read(cacheFile()));
+
+        // one of the same size replaces it only if the cached file can simply be linked to it
+        replaceFileToCache("replaced!");
+        assertEquals(linked ? "replaced!" : "repaired!", read(cacheFile()));
+        assertFalse(new File(cachedFile.getPath() + "_new").exists());
+    }
+
+    private void replaceFileToCache (String contents) throws IOException
+    {
+        File update = new File(_fileToCache.getPath() + "_new");
+        write(update, contents);
+        assertTrue(FileUtil.renameTo(update, _fileToCache));
+    }
+
+    private static void write (File file, String contents) throws IOException
+    {
+        Files.write(file.toPath(), contents.getBytes(UTF_8));
+    }
+
+    private static String read (File file) throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()), UTF_8);
+    }
+
     @Rule public final TemporaryFolder _folder = new TemporaryFolder();
 
     private File _fileToCache;
@@ -5,16 +5,25 @@
 
 package com.threerings.getdown.data;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.threerings.getdown.util.Config;
+import com.threerings.getdown.util.ProgressObserver;
 
 public class ApplicationTest {
 
@@ -63,6 +72,211 @@ public class ApplicationTest {
         assertEquals(new URL(expectAppbase), app.getRemoteURL(""));
     }
 
+    @Test public void testDigestVersions () throws Exception {
+        // newer digest versions must be opted into
+        Application app = createApp();
+        app.initBase(new Config(Config.parseData(toReader(
+            "appbase", "https://test.com/foo/bar/"
+        ), Config.createOpts(true))));
+        assertArrayEquals(new int[] { 1, 2 }, app.digestVersions());
+        assertEquals(2, app.digestVersion());
+
+        app = createApp();
+        app.initBase(new Config(Config.parseData(toReader(
+            "appbase", "https://test.com/foo/bar/",
+            "digest_versions", "3, 1, 99"
+        ), Config.createOpts(true))));
+        assertArrayEquals(new int[] { 1, 3 }, app.digestVersions());
+        assertEquals(3, app.digestVersion());
+    }
+
+    @Test public void testDownloadRateLimit () throws Exception {
+        Application app = createApp();
+        app.initBase(new Config(Config.parseData(toReader(
+            "appbase", "https://test.com/foo/bar/",
+            "max_download_rate", "1000",
+            "max_background_download_rate", "100"
+        ), Config.createOpts(true))));
+        assertEquals(1000L, app.downloadRateLimit(false));
+        assertEquals(100L, app.downloadRateLimit(true));
+
+        // each override applies only to its own mode
+        try {
+            System.setProperty("download_rate_limit", "0");
+            assertEquals(0L, app.downloadRateLimit(false));
+            assertEquals(100L, app.downloadRateLimit(true));
+
+            System.setProperty("background_download_rate_limit", "50");
+            assertEquals(0L, app.downloadRateLimit(false));
+            assertEquals(50L, app.downloadRateLimit(true));
+        } finally {
+            System.clearProperty("download_rate_limit");
+            System.clearProperty("background_download_rate_limit");
+        }
+    }
+
+    @Test public void testLargestFirst () {
+        // resources are verified largest first so that big ones don't straggle at the end
+        assertArrayEquals(new Integer[] { 1, 3, 0, 2 },
+                          Application.largestFirst(new long[] { 20, 500, 3, 40 }));
+        assertArrayEquals(new Integer[0], Application.largestFirst(new long[0]));
+    }
+
+    @Test public void testLogSlowestVerifies () throws Exception {
+        List<Resource> rsrcs = new ArrayList<>();
+        long[] durations = { 150, 10, 900, 400, 2000, 300, 120, 99 };
+        long[] sizes = new long[durations.length];
+        for (int ii = 0; ii < durations.length; ii++) {
+            rsrcs.add(new Resource("rsrc" + ii, new URL("http://localhost/rsrc" + ii),
+                                   new File("rsrc" + ii), Resource.NORMAL));
+        }
+        Application app = createApp();
+        // only the slowest few verifications are logged, slowest first
+        assertEquals(Application.SLOWEST_VERIFIES_LOGGED, 5);
+        assertEquals(Arrays.asList(rsrcs.get(4), rsrcs.get(2), rsrcs.get(3), rsrcs.get(5),
+                                   rsrcs.get(0)),
+                     app.logSlowestVerifies(rsrcs, sizes, durations));
+        // and fast verifications are never logged
+        assertEquals(Arrays.asList(rsrcs.get(6)), app.logSlowestVerifies(
+            rsrcs, sizes, new long[] { 0, 10, 20, 30, 40, 50, 120, 99 }));
+    }
+
+    @Test public void testVerifyStatus () throws Exception {
+        File appdir = _folder.newFolder("appdir");
+        Application app = new Application(new EnvConfig(appdir));
+        File status = new File(appdir, Application.VERIFY_STATUS_FILE);
+
+        // with no status, resources were never verified after launch
+        assertNull(app.readVerifyStatus());
+
+        app.writeVerifyStatus(Application.STATUS_OK, Collections.<String>emptyList());
+        assertEquals(Collections.emptySet(), app.readVerifyStatus());
+        app.writeVerifyStatus(Application.STATUS_DAMAGED, Arrays.asList("a.dat", "b/c.dat"));
+        assertEquals(new HashSet<>(Arrays.asList("a.dat", "b/c.dat")), app.readVerifyStatus());
+        assertFalse(new File(appdir, Application.VERIFY_STATUS_FILE + "_new").exists());
+
+        // if the verifier was killed mid-verification or its status is garbled, we re-verify
+        app.writeVerifyStatus(Application.STATUS_VERIFYING, Collections.<String>emptyList());
+        assertNull(app.readVerifyStatus());
+        Files.write(status.toPath(), "damaged = a.dat\n".getBytes(UTF_8));
+        assertNull(app.readVerifyStatus());
+        Files.write(status.toPath(), "status = o".getBytes(UTF_8));
+        assertNull(app.readVerifyStatus());
+    }
+
+    @Test public void testVerifyAfterLaunch () throws Exception {
+        File appdir = _folder.newFolder("appdir");
+        Files.write(new File(appdir, "code.bin").toPath(), "code".getBytes(UTF_8));
+        File data = new File(appdir, "data.bin");
+        Files.write(data.toPath(), "precious data".getBytes(UTF_8));
+        data.setLastModified(OLD_MODTIME);
+        Files.write(new File(appdir, "getdown.txt").toPath(), Arrays.asList(
+            "appbase = https://test.com/foo/bar/", "class = Main", "code = code.bin",
+            "resource = data.bin",
+            "verify_after_launch = true", "revalidate_policy = always",
+            "paranoid_verify = true"), UTF_8);
+        Application app = new Application(new EnvConfig(appdir));
+        app.init(true);
+        Digest.createDigest(2, app.getAllActiveResources(), new File(appdir, "digest2.txt"));
+        app._digest = new Digest(appdir, 2, false);
+
+        // with no record of a verification after launch, we verify everything before launch
+        assertTrue(verify(app).isEmpty());
+        assertFalse(app.hasDeferredResources());
+        app.verifyDeferredResources();
+
+        // now that we've a record, previously validated resources are verified after launch
+        assertTrue(verify(app).isEmpty());
+        assertTrue(app.hasDeferredResources());
+
+        // if that verification is cut short, we go back to verifying before launch
+        app.writeVerifyStatus(Application.STATUS_VERIFYING, Collections.<String>emptyList());
+        assertTrue(verify(app).isEmpty());
+        assertFalse(app.hasDeferredResources());
+        app.verifyDeferredResources();
+
+        // damage that escapes the ledger is caught after launch and repaired before the next one
+        assertTrue(verify(app).isEmpty());
+        assertTrue(app.hasDeferredResources());
+        Files.write(data.toPath(), "damaged data!".getBytes(UTF_8));
+        data.setLastModified(OLD_MODTIME);
+        app.verifyDeferredResources();
+        assertEquals(Collections.singleton("data.bin"), app.readVerifyStatus());
+        Set<Resource> toDownload = verify(app);
+        assertFalse(app.hasDeferredResources());
+        assertEquals(1, toDownload.size());
+        assertEquals("data.bin", toDownload.iterator().next().getPath());
+    }
+
+    @Test public void testDigestVersionFallback () throws Exception {
+        // an appbase digested before version 4 existed has no digest4.txt
+        File appbase = _folder.newFolder("appbase");
+        Files.write(new File(appbase, "digest2.txt").toPath(), "digest2".getBytes(UTF_8));
+        File appdir = _folder.newFolder("appdir");
+        File stale = new File(appdir, "digest4.txt");
+        Files.write(stale.toPath(), "stale".getBytes(UTF_8));
+        stale.setLastModified(OLD_MODTIME);
+
+        // we don't fall back unless the app allows it
+        Application app = new Application(new EnvConfig(appdir));
+        app.initBase(new Config(Config.parseData(toReader(
+            "appbase", appbase.toURI().toString(),
+            "digest_versions", "1, 2, 4"
+        ), Config.createOpts(true))));
+        assertEquals(4, app.minDigestVersion());
+        try {
+            app.downloadDigestFiles();
+            fail("Should not have fallen back to digest2.txt");
+        } catch (IOException ioe) {
+            // expected
+        }
+        assertEquals(4, app.presentDigestVersion());
+
+        app = new Application(new EnvConfig(appdir));
+        app.initBase(new Config(Config.parseData(toReader(
+            "appbase", appbase.toURI().toString(),
+            "digest_versions", "1, 2, 4",
+            "min_digest_version", "1"
+        ), Config.createOpts(true))));
+        // we never fall back to MD5 digests
+        assertEquals(2, app.minDigestVersion());
+        assertEquals(4, app.presentDigestVersion());
+
+        // we fall back to the newest digest the appbase has, but keep our newer local digest
+        app.downloadDigestFiles();
+        assertTrue(stale.exists());
+        assertTrue(new File(appdir, "digest2.txt").exists());
+        assertEquals(2, app.presentDigestVersion());
+    }
+
+    @Test public void testMissingDigestFailsUpdate () throws Exception {
+        // an appbase which lacks digest2.txt (say because its download is blocked) must not cause
+        // us to validate against the MD5 digests of digest.txt
+        File appbase = _folder.newFolder("appbase");
+        Files.write(new File(appbase, "digest.txt").toPath(), "digest".getBytes(UTF_8));
+        File appdir = _folder.newFolder("appdir");
+        Application app = new Application(new EnvConfig(appdir));
+        app.initBase(new Config(Config.parseData(toReader(
+            "appbase", appbase.toURI().toString()
+        ), Config.createOpts(true))));
+        try {
+            app.downloadDigestFiles();
+            fail("Should not have fallen back to digest.txt");
+        } catch (IOException ioe) {
+            // expected
+        }
+        assertFalse(new File(appdir, "digest.txt").exists());
+        assertEquals(2, app.presentDigestVersion());
+    }
+
+    protected static Set<Resource> verify (Application app) throws Exception {
+        Set<Resource> toDownload = new HashSet<>();
+        app.verifyResources(new ProgressObserver() {
+            public void progress (int percent) {}
+        }, new int[1], new HashSet<Resource>(), new HashSet<Resource>(), toDownload);
+        return toDownload;
+    }
+
     protected static StringReader toReader (String... pairs)
     {
         StringBuilder builder = new StringBuilder();
@@ -72,4 +286,7 @@ public class ApplicationTest {
         return new StringReader(builder.toString());
     }
 
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+
+    protected static final long OLD_MODTIME = 1500000000000L;
 }
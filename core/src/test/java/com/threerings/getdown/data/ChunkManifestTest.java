@@ -0,0 +1,132 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ChunkManifest}.
+ */
+public class ChunkManifestTest
+{
+    @Test public void shouldRoundTripThroughFile () throws IOException
+    {
+        File file = createFile(10 * 1000 + 7);
+        ChunkManifest chunks = ChunkManifest.compute(file, 1000, Digest.VERSION);
+        File mfile = new File(_folder.getRoot(), "data.bin.chunks3");
+        chunks.write(mfile);
+
+        ChunkManifest parsed = ChunkManifest.parse(
+            new String(Files.readAllBytes(mfile.toPath()), UTF_8));
+        assertEquals(chunks.size(), parsed.size());
+        assertEquals(1000, parsed.chunkSize());
+        assertEquals(chunks.root(Digest.VERSION), parsed.root(Digest.VERSION));
+        assertTrue(parsed.damagedRanges(file, Digest.VERSION).isEmpty());
+    }
+
+    @Test public void shouldFindDamagedRanges () throws IOException
+    {
+        File file = createFile(10 * 1000 + 7);
+        ChunkManifest chunks = ChunkManifest.compute(file, 1000, Digest.VERSION);
+
+        // damage chunks 2 and 3 (which should be coalesced), and the final partial chunk
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            corrupt(raf, 2500);
+            corrupt(raf, 3000);
+            corrupt(raf, 10005);
+        }
+        List<long[]> ranges = chunks.damagedRanges(file, Digest.VERSION);
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new long[] { 2000, 3999 }, ranges.get(0));
+        assertArrayEquals(new long[] { 10000, 10006 }, ranges.get(1));
+    }
+
+    @Test public void shouldRepairTruncatedAndExtendedFiles () throws IOException
+    {
+        File file = createFile(5000);
+        ChunkManifest chunks = ChunkManifest.compute(file, 1000, Digest.VERSION);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(3500);
+        }
+        List<long[]> ranges = chunks.damagedRanges(file, Digest.VERSION);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 3000, 4999 }, ranges.get(0));
+
+        // a file with trailing junk must still have its last chunk rewritten to truncate it
+        file = createFile(5000);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(6000);
+        }
+        ranges = chunks.damagedRanges(file, Digest.VERSION);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 4999, 4999 }, ranges.get(0));
+    }
+
+    @Test public void shouldChangeRootWhenChunksChange () throws IOException
+    {
+        File file = createFile(4000);
+        String root = ChunkManifest.compute(file, 1000, Digest.VERSION).root(Digest.VERSION);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            corrupt(raf, 1234);
+        }
+        String damaged = ChunkManifest.compute(file, 1000, Digest.VERSION).root(Digest.VERSION);
+        assertNotEquals(root, damaged);
+        // the chunk size also contributes to the root
+        assertNotEquals(damaged,
+                        ChunkManifest.compute(file, 2000, Digest.VERSION).root(Digest.VERSION));
+    }
+
+    @Test public void shouldComputeSeveralVersionsAtOnce () throws IOException
+    {
+        File file = createFile(3 * 1000 + 1);
+        int[] versions = { 1, 2, 3 };
+        ChunkManifest[] chunks = ChunkManifest.compute(file, 1000, versions);
+        for (int ii = 0; ii < versions.length; ii++) {
+            ChunkManifest single = ChunkManifest.compute(file, 1000, versions[ii]);
+            assertEquals(single.root(versions[ii]), chunks[ii].root(versions[ii]));
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void shouldRejectInconsistentManifest () throws IOException
+    {
+        // claims two chunks but lists only one hash
+        ChunkManifest.parse("size 2000\nchunk_size 1000\n0123456789abcdef\n");
+    }
+
+    protected File createFile (int size) throws IOException
+    {
+        byte[] data = new byte[size];
+        for (int ii = 0; ii < size; ii++) {
+            data[ii] = (byte)(ii * 31 + (ii >> 8));
+        }
+        File file = new File(_folder.getRoot(), "data.bin");
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    protected static void corrupt (RandomAccessFile raf, long pos) throws IOException
+    {
+        raf.seek(pos);
+        int b = raf.read();
+        raf.seek(pos);
+        raf.write(b ^ 0xFF);
+    }
+
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+}
@@ -0,0 +1,79 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link DigestCache}.
+ */
+public class DigestCacheTest
+{
+    @Test public void shouldReturnDigestForUnchangedFile () throws IOException
+    {
+        File file = createFile("data.bin", 100);
+        DigestCache cache = new DigestCache(new File(_folder.getRoot(), "cache.dat"));
+        cache.put(2, "data.bin", DigestCache.stat(file), "abc");
+        assertEquals("abc", cache.get(2, "data.bin", DigestCache.stat(file)));
+        assertNull(cache.get(1, "data.bin", DigestCache.stat(file)));
+    }
+
+    @Test public void shouldMissForChangedFile () throws IOException
+    {
+        File file = createFile("data.bin", 100);
+        DigestCache cache = new DigestCache(new File(_folder.getRoot(), "cache.dat"));
+        cache.put(2, "data.bin", DigestCache.stat(file), "abc");
+        writeFile(file, 101);
+        file.setLastModified(OLD_MODTIME);
+        assertNull(cache.get(2, "data.bin", DigestCache.stat(file)));
+    }
+
+    @Test public void shouldNotCacheRecentlyModifiedFile () throws IOException
+    {
+        File file = createFile("data.bin", 100);
+        file.setLastModified(System.currentTimeMillis());
+        DigestCache cache = new DigestCache(new File(_folder.getRoot(), "cache.dat"));
+        cache.put(2, "data.bin", DigestCache.stat(file), "abc");
+        assertNull(cache.get(2, "data.bin", DigestCache.stat(file)));
+    }
+
+    @Test public void shouldRoundTripThroughFile () throws IOException
+    {
+        File file = createFile("data.bin", 100);
+        File cfile = new File(_folder.getRoot(), "cache.dat");
+        DigestCache cache = new DigestCache(cfile);
+        cache.put(2, "some dir/data.bin", DigestCache.stat(file), "abc");
+        cache.save();
+
+        DigestCache loaded = new DigestCache(cfile);
+        assertEquals("abc", loaded.get(2, "some dir/data.bin", DigestCache.stat(file)));
+    }
+
+    protected File createFile (String name, int size) throws IOException
+    {
+        File file = _folder.newFile(name);
+        writeFile(file, size);
+        file.setLastModified(OLD_MODTIME);
+        return file;
+    }
+
+    protected static void writeFile (File file, int size) throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+
+    protected static final long OLD_MODTIME = 1500000000000L;
+}
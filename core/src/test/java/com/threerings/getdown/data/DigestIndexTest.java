@@ -0,0 +1,110 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.threerings.getdown.util.StringUtil;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link DigestIndex}.
+ */
+public class DigestIndexTest
+{
+    @Test public void shouldFindIndexedDigests () throws IOException
+    {
+        Map<String, String> digests = new HashMap<>();
+        for (int ii = 0; ii < 100; ii++) {
+            digests.put("dir" + (ii % 7) + "/file" + ii + ".jar", hash("file" + ii));
+        }
+        digests.put("funny%test dir/some=file.txt", hash("funny"));
+        digests.put("\u00fcber.txt", hash("uber"));
+        byte[] text = "some digest text".getBytes(UTF_8);
+        File file = _folder.newFile("digest3.idx");
+        assertTrue(DigestIndex.write(file, 3, true, text, digests, hash("meta")));
+
+        DigestIndex index = DigestIndex.load(file, 3, true, text);
+        assertNotNull(index);
+        assertEquals(digests.size(), index.size());
+        assertEquals(hash("meta"), index.getMetaDigest());
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey()));
+        }
+        assertNull(index.get("missing.jar"));
+        assertNull(index.get("dir0/file0.ja"));
+        assertNull(index.get(""));
+    }
+
+    @Test public void shouldIgnoreStaleIndex () throws IOException
+    {
+        Map<String, String> digests = new HashMap<>();
+        digests.put("foo.jar", hash("foo"));
+        byte[] text = "some digest text".getBytes(UTF_8);
+        File file = _folder.newFile("digest3.idx");
+        assertTrue(DigestIndex.write(file, 3, true, text, digests, hash("meta")));
+
+        assertNull(DigestIndex.load(file, 3, true, "other digest text".getBytes(UTF_8)));
+        assertNull(DigestIndex.load(file, 3, false, text));
+        assertNull(DigestIndex.load(file, 2, true, text));
+        assertNull(DigestIndex.load(new File(_folder.getRoot(), "missing.idx"), 3, true, text));
+
+        // a truncated index is ignored
+        byte[] data = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length - 1));
+        assertNull(DigestIndex.load(file, 3, true, text));
+    }
+
+    @Test public void shouldNotIndexUnexpectedHashes () throws IOException
+    {
+        Map<String, String> digests = new HashMap<>();
+        digests.put("foo.jar", "not a hash");
+        File file = new File(_folder.getRoot(), "digest3.idx");
+        assertFalse(DigestIndex.write(file, 3, true, new byte[0], digests, hash("meta")));
+        assertFalse(file.exists());
+    }
+
+    @Test public void shouldLoadDigestFromIndex () throws IOException
+    {
+        File appdir = _folder.getRoot();
+        StringBuilder data = new StringBuilder(), text = new StringBuilder();
+        for (String path : new String[] { "getdown.txt", "code/app.jar" }) {
+            Digest.note(data, path, hash(path));
+            text.append(path).append(" = ").append(hash(path)).append("\n");
+        }
+        String meta = StringUtil.hexlate(
+            Digest.getMessageDigest(3).digest(data.toString().getBytes(UTF_8)));
+        text.append("digest3.txt = ").append(meta).append("\n");
+        Files.write(new File(appdir, "digest3.txt").toPath(), text.toString().getBytes(UTF_8));
+
+        // the first load parses the text file and writes the index, the second uses the index
+        Digest parsed = new Digest(appdir, 3, true);
+        assertNull(parsed._index);
+        assertTrue(new File(appdir, "digest3.idx").exists());
+        Digest indexed = new Digest(appdir, 3, true);
+        assertNotNull(indexed._index);
+        assertEquals(parsed.getMetaDigest(), indexed.getMetaDigest());
+        assertEquals(hash("code/app.jar"), indexed.lookup("code/app.jar"));
+    }
+
+    protected static String hash (String value)
+    {
+        return StringUtil.hexlate(Digest.getMessageDigest(3).digest(value.getBytes(UTF_8)));
+    }
+
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+}
@@ -0,0 +1,67 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+import com.threerings.getdown.util.StringUtil;
+
+/**
+ * Tests {@link Resource}.
+ */
+public class ResourceTest
+{
+    @Test public void shouldDigestLargeFilesLikeSmallOnes () throws Exception
+    {
+        // sizes either side of the direct buffer threshold, and ones which don't fill the last
+        // read of the direct buffer
+        long threshold = Resource.DIRECT_DIGEST_THRESHOLD;
+        int bufsize = Resource.DIRECT_DIGEST_BUFFER_SIZE;
+        long[] sizes = { threshold - 1, threshold, 3 * bufsize + 17,
+                         Resource.PARALLEL_FILE_DIGEST_SIZE + 5 };
+        for (long size : sizes) {
+            byte[] data = createData((int)size);
+            File file = _folder.newFile("data" + size + ".bin");
+            Files.write(file.toPath(), data);
+            for (int version = 1; version <= Digest.VERSION; version++) {
+                String expect = expectedDigest(version, data);
+                MessageDigest md = Digest.getMessageDigest(version);
+                assertEquals("v" + version + " size " + size, expect,
+                             Resource.computeDigest(version, file, md, null));
+                // hash twice to be sure that the reused direct buffer is reset between files
+                assertEquals("v" + version + " size " + size, expect,
+                             Resource.computeDigest(version, file, md, null));
+            }
+            int[] versions = { 1, 2 };
+            assertArrayEquals(new String[] { expectedDigest(1, data), expectedDigest(2, data) },
+                              Resource.computeDigests(versions, file, null));
+        }
+    }
+
+    protected static String expectedDigest (int version, byte[] data)
+    {
+        MessageDigest md = Digest.getMessageDigest(version);
+        md.update(data);
+        return StringUtil.hexlate(md.digest());
+    }
+
+    protected static byte[] createData (int size) throws IOException
+    {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+}
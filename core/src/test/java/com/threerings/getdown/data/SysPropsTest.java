@@ -14,6 +14,8 @@ public class SysPropsTest {
         System.clearProperty("delay");
         System.clearProperty("appbase_domain");
         System.clearProperty("appbase_override");
+        System.clearProperty("http_max_connections");
+        System.clearProperty("http_idle_timeout");
     }
 
     private static final String[] APPBASES = {
@@ -54,6 +56,20 @@ public class SysPropsTest {
         }
     }
 
+    @Test public void testHttpPool () {
+        // by default we retain a connection per download thread
+        assertEquals(SysProps.threadPoolSize(), SysProps.httpMaxConnections());
+        assertEquals(0, SysProps.httpIdleTimeout());
+
+        System.setProperty("http_max_connections", "12");
+        System.setProperty("http_idle_timeout", "30");
+        assertEquals(12, SysProps.httpMaxConnections());
+        assertEquals(30, SysProps.httpIdleTimeout());
+
+        System.setProperty("http_idle_timeout", "-5");
+        assertEquals(0, SysProps.httpIdleTimeout());
+    }
+
     @Test public void testAppbaseOverride () {
         System.setProperty("appbase_override", "https://barbaz.com/newapp");
         for (String appbase : APPBASES) {
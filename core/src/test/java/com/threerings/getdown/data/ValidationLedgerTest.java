@@ -0,0 +1,114 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ValidationLedger}.
+ */
+public class ValidationLedgerTest
+{
+    @Before public void setUp () throws IOException
+    {
+        _ledgerFile = new File(_folder.getRoot(), "validated.dat");
+        _local = _folder.newFile("foo.jar");
+        Files.write(_local.toPath(), "some data".getBytes(UTF_8));
+    }
+
+    @Test public void shouldRememberValidResources () throws IOException
+    {
+        ValidationLedger ledger = new ValidationLedger(_ledgerFile);
+        Resource rsrc = resource(ledger);
+        assertFalse(rsrc.isMarkedValid());
+        rsrc.markAsValid();
+        assertTrue(rsrc.isMarkedValid());
+        assertFalse(_ledgerFile.exists());
+
+        // the ledger is only written when saved, and in a single file
+        ledger.save();
+        assertTrue(_ledgerFile.exists());
+        assertFalse(new File(_local.getPath() + "v").exists());
+        ValidationLedger reloaded = new ValidationLedger(_ledgerFile);
+        assertTrue(resource(reloaded).isMarkedValid());
+
+        rsrc.clearMarker();
+        ledger.save();
+        assertFalse(resource(new ValidationLedger(_ledgerFile)).isMarkedValid());
+    }
+
+    @Test public void shouldInvalidateChangedResources () throws IOException
+    {
+        ValidationLedger ledger = new ValidationLedger(_ledgerFile);
+        Resource rsrc = resource(ledger);
+        rsrc.markAsValid();
+
+        assertTrue(_local.setLastModified(_local.lastModified() - 10000L));
+        assertFalse(rsrc.isMarkedValid());
+
+        rsrc.markAsValid();
+        assertTrue(_local.delete());
+        assertFalse(rsrc.isMarkedValid());
+    }
+
+    @Test public void shouldInvalidateOnDigestVersionChange () throws IOException
+    {
+        ValidationLedger ledger = new ValidationLedger(_ledgerFile);
+        ledger.setDigestVersion(2);
+        Resource rsrc = resource(ledger);
+        rsrc.markAsValid();
+        assertTrue(rsrc.isMarkedValid());
+        ledger.setDigestVersion(3);
+        assertFalse(rsrc.isMarkedValid());
+    }
+
+    @Test public void shouldAdoptMarkerFiles () throws IOException
+    {
+        File marker = new File(_local.getPath() + "v");
+        assertTrue(marker.createNewFile());
+
+        ValidationLedger ledger = new ValidationLedger(_ledgerFile);
+        assertTrue(resource(ledger).isMarkedValid());
+        assertFalse(marker.exists());
+        ledger.save();
+
+        // once a ledger exists, marker files are ignored
+        assertTrue(marker.createNewFile());
+        Resource other = resource(new ValidationLedger(_ledgerFile), "bar.jar");
+        assertTrue(new File(_folder.getRoot(), "bar.jarv").createNewFile());
+        assertFalse(other.isMarkedValid());
+    }
+
+    protected Resource resource (ValidationLedger ledger) throws IOException
+    {
+        return resource(ledger, _local.getName());
+    }
+
+    protected Resource resource (ValidationLedger ledger, String path) throws IOException
+    {
+        File local = new File(_folder.getRoot(), path);
+        if (!local.exists()) {
+            Files.write(local.toPath(), path.getBytes(UTF_8));
+        }
+        return new Resource(path, new URL("http://localhost/" + path), local,
+                            Resource.NORMAL, ledger);
+    }
+
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+
+    protected File _ledgerFile, _local;
+}
@@ -0,0 +1,110 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ConcurrencyController}.
+ */
+public class ConcurrencyControllerTest
+{
+    @Test public void shouldIncreaseWhileSaturated () throws InterruptedException
+    {
+        ConcurrencyController cc = new ConcurrencyController(2, 4);
+        fill(cc, 2);
+        cc.noteLatency(100, _now);
+        for (int ii = 0; ii < 5; ii++) {
+            tick(cc, 1000000);
+            fill(cc, cc.limit());
+        }
+        assertEquals(4, cc.limit());
+    }
+
+    @Test public void shouldNotIncreaseWhenIdle () throws InterruptedException
+    {
+        ConcurrencyController cc = new ConcurrencyController(2, 8);
+        fill(cc, 1);
+        cc.noteLatency(100, _now);
+        for (int ii = 0; ii < 5; ii++) {
+            tick(cc, 1000000);
+        }
+        assertEquals(2, cc.limit());
+    }
+
+    @Test public void shouldHalveOnLatencySpike () throws InterruptedException
+    {
+        ConcurrencyController cc = new ConcurrencyController(8, 8);
+        fill(cc, 8);
+        cc.noteLatency(100, _now);
+        tick(cc, 1000000);
+        cc.noteLatency(1000, _now);
+        tick(cc, 1000000);
+        assertEquals(4, cc.limit());
+    }
+
+    @Test public void shouldHalveOnThroughputDrop () throws InterruptedException
+    {
+        ConcurrencyController cc = new ConcurrencyController(8, 8);
+        fill(cc, 8);
+        cc.noteLatency(100, _now);
+        tick(cc, 1000000);
+        tick(cc, 100000);
+        assertEquals(4, cc.limit());
+        // the drop that follows a decrease is expected and should not cause another decrease
+        tick(cc, 50000);
+        assertEquals(4, cc.limit());
+    }
+
+    @Test public void shouldCountBytesUnderContention () throws InterruptedException
+    {
+        final ConcurrencyController cc = new ConcurrencyController(2, 8);
+        cc.noteLatency(100, _now);
+        final long now = _now + 500L; // within the first sample window
+        List<Thread> threads = new ArrayList<>();
+        for (int ii = 0; ii < 8; ii++) {
+            Thread thread = new Thread() {
+                @Override public void run () {
+                    for (int bb = 0; bb < 100000; bb++) {
+                        cc.noteBytes(10, now);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8 * 100000 * 10L, cc._bytes.get());
+
+        // the first thread to notice the end of the window consumes its bytes, once
+        cc.noteBytes(0, now + 1000L);
+        assertEquals(0L, cc._bytes.get());
+        assertEquals(now + 1000L, cc._windowStart.get());
+    }
+
+    protected void fill (ConcurrencyController cc, int active) throws InterruptedException
+    {
+        while (_active < active) {
+            cc.acquire();
+            _active++;
+        }
+    }
+
+    protected void tick (ConcurrencyController cc, long bytes)
+    {
+        _now += 1000L;
+        cc.noteBytes(bytes, _now);
+    }
+
+    protected long _now = 1000L;
+    protected int _active;
+}
@@ -0,0 +1,140 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Tests {@link Connector}.
+ */
+public class ConnectorTest
+{
+    @Before public void startServer () throws IOException
+    {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/down/", new Responder(503, "unavailable"));
+        _server.createContext("/up/", new Responder(200, CONTENTS));
+        _server.start();
+        _base = "http://127.0.0.1:" + _server.getAddress().getPort();
+    }
+
+    @After public void stopServer ()
+    {
+        _server.stop(0);
+    }
+
+    @Test public void shouldFailOverOnServerError () throws Exception
+    {
+        Connector conn = connector(_base + "/down/", _base + "/up/");
+        File target = _folder.newFile("code.jar");
+        conn.download(new URL(_base + "/down/code.jar"), target);
+        assertEquals(CONTENTS, new String(Files.readAllBytes(target.toPath()), UTF_8));
+    }
+
+    @Test public void shouldFailOverOnConnectFailure () throws Exception
+    {
+        String dead = "http://127.0.0.1:" + unusedPort() + "/app/";
+        Connector conn = connector(dead, _base + "/down/", _base + "/up/");
+        File target = _folder.newFile("code.jar");
+        conn.download(new URL(dead + "code.jar"), target);
+        assertEquals(CONTENTS, new String(Files.readAllBytes(target.toPath()), UTF_8));
+    }
+
+    @Test public void shouldFailWhenAllMirrorsFail () throws Exception
+    {
+        String dead = "http://127.0.0.1:" + unusedPort() + "/app/";
+        Connector conn = connector(_base + "/down/", dead);
+        try {
+            conn.download(new URL(_base + "/down/code.jar"), _folder.newFile("code.jar"));
+            fail("Download should have failed");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    @Test public void shouldNotFailOverToMirrorsNotWhitelisted () throws Exception
+    {
+        // the working mirror is listed by a host name which is not in the whitelist
+        Connector conn = new Connector();
+        conn.setMirrors(new Mirrors(
+            Arrays.asList(_base + "/down/", _base.replace("127.0.0.1", "localhost") + "/up/"),
+            Arrays.asList("127.0.0.1")));
+        try {
+            conn.download(new URL(_base + "/down/code.jar"), _folder.newFile("code.jar"));
+            fail("Download should not have been retried from a mirror not in the whitelist");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    @Test public void shouldNotFailOverForeignURLs () throws Exception
+    {
+        Connector conn = connector(_base + "/up/");
+        try {
+            conn.download(new URL(_base + "/down/code.jar"), _folder.newFile("code.jar"));
+            fail("Download should not have been retried from a mirror");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    protected static Connector connector (String... appbases)
+    {
+        Connector conn = new Connector();
+        conn.setMirrors(new Mirrors(Arrays.asList(appbases), Collections.<String>emptyList()));
+        return conn;
+    }
+
+    protected static int unusedPort () throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    protected static class Responder implements HttpHandler
+    {
+        public Responder (int code, String body) {
+            _code = code;
+            _body = body.getBytes(UTF_8);
+        }
+
+        @Override public void handle (HttpExchange exchange) throws IOException {
+            exchange.sendResponseHeaders(_code, _body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(_body);
+            }
+        }
+
+        protected final int _code;
+        protected final byte[] _body;
+    }
+
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+
+    protected HttpServer _server;
+    protected String _base;
+
+    protected static final String CONTENTS = "mirrored contents";
+}
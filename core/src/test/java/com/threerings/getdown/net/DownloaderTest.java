@@ -0,0 +1,256 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.threerings.getdown.data.Digest;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.FileUtil;
+
+/**
+ * Tests {@link Downloader}.
+ */
+public class DownloaderTest
+{
+    @Test public void shouldCountProgressUnderContention () throws Exception
+    {
+        final TestDownloader dl = new TestDownloader();
+        final List<Resource> rsrcs = new ArrayList<>();
+        for (int ii = 0; ii < THREADS; ii++) {
+            Resource rsrc = resource("rsrc" + ii);
+            rsrcs.add(rsrc);
+            dl._sizes.put(rsrc, (long)(CHUNKS * CHUNK));
+        }
+        // the last resource is downloaded in segments, all of which report progress at once
+        final Resource segmented = resource("segmented");
+        rsrcs.add(segmented);
+        dl._sizes.put(segmented, (long)(THREADS * CHUNKS * CHUNK));
+        dl.initProgress(rsrcs, Collections.<Resource>emptySet());
+
+        final AtomicLong segDownloaded = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int ii = 0; ii < THREADS; ii++) {
+            final Resource rsrc = rsrcs.get(ii);
+            Thread thread = new Thread() {
+                @Override public void run () {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    for (int cc = 1; cc <= CHUNKS; cc++) {
+                        dl.reportProgress(rsrc, cc * CHUNK, CHUNKS * CHUNK);
+                        dl.reportProgress(segmented, segDownloaded.addAndGet(CHUNK),
+                                          THREADS * CHUNKS * CHUNK);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long expected = 2L * THREADS * CHUNKS * CHUNK;
+        assertEquals(expected, dl._totalSize.get());
+        assertEquals(expected, dl._totalDownloaded.get());
+        for (int ii = 0; ii < rsrcs.size(); ii++) {
+            assertEquals(dl._rsrcSizes.get(ii), dl._rsrcDownloaded.get(ii));
+        }
+    }
+
+    @Test public void shouldProbeSizesAndDownloadSmallestFirst () throws Exception
+    {
+        File remote = _folder.newFolder("remote"), local = _folder.newFolder("local");
+        List<Resource> rsrcs = new ArrayList<>();
+        for (int size : new int[] { 9000, 1000, 5000 }) {
+            String path = "rsrc" + size;
+            Files.write(new File(remote, path).toPath(), new byte[size]);
+            rsrcs.add(new Resource(path, new File(remote, path).toURI().toURL(),
+                                   new File(local, path), Resource.NORMAL));
+        }
+
+        TestDownloader dl = new TestDownloader();
+        assertTrue(dl.download(rsrcs, 1));
+        // the actual sizes were known up front, so our progress was weighted by them
+        assertEquals(0, dl._estimatedCount.get());
+        assertEquals(15000L, dl._totalSize.get());
+        assertEquals(Arrays.asList("rsrc1000", "rsrc5000", "rsrc9000"), dl.started);
+        assertEquals(9000L, rsrcs.get(0).getLocalNew().length());
+    }
+
+    @Test public void shouldWeightProgressBySize () throws Exception
+    {
+        TestDownloader dl = new TestDownloader();
+        Resource small = resource("small"), large = resource("large");
+        dl._sizes.put(small, 1000L);
+        dl._sizes.put(large, 9000L);
+        dl.initProgress(Arrays.asList(small, large), Collections.<Resource>emptySet());
+        dl.reportProgress(small, 1000L, 1000L);
+        assertEquals(Integer.valueOf(10), dl.percents.get(dl.percents.size()-1));
+    }
+
+    @Test public void shouldOnlyVerifyStagedArchiveMatchingItsCentralDirectory () throws Exception
+    {
+        byte[] good = zip("code/Main.class", "good code");
+        byte[] evil = zip("code/Main.class", "evil code");
+        // the local headers describe the good entry, which is all that's read when streaming, but
+        // the central directory points to the evil entry, which is what ZipFile would read
+        int goodLocal = cenOffset(good), pad = 4;
+        ByteBuffer crafted = ByteBuffer.allocate(goodLocal + pad + evil.length);
+        crafted.put(good, 0, goodLocal).put(new byte[pad]).put(evil);
+        crafted.order(ByteOrder.LITTLE_ENDIAN);
+        int cen = goodLocal + pad + cenOffset(evil);
+        crafted.putInt(cen + 42, crafted.getInt(cen + 42) + goodLocal + pad);
+        int end = crafted.capacity() - 22;
+        crafted.putInt(end + 16, cen);
+
+        File remote = _folder.newFolder("remote"), local = _folder.newFolder("local");
+        Files.write(new File(remote, "good.jar").toPath(), good);
+        Files.write(new File(remote, "crafted.jar").toPath(), crafted.array());
+        String edigest = Resource.computeDigest(
+            3, new File(remote, "good.jar"), Digest.getMessageDigest(3), null);
+        try (ZipFile zip = new ZipFile(new File(remote, "crafted.jar"))) {
+            assertEquals(1, zip.size()); // sanity check that ZipFile reads the evil entry
+            assertNotEquals(edigest, Resource.computeDigest(
+                3, new File(remote, "crafted.jar"), Digest.getMessageDigest(3), null));
+        }
+
+        for (String name : new String[] { "good.jar", "crafted.jar" }) {
+            Resource rsrc = new Resource(name, new File(remote, name).toURI().toURL(),
+                                         new File(local, name), Resource.UNPACK);
+            StagingDownloader dl = new StagingDownloader(edigest);
+            assertTrue(dl.download(Collections.singletonList(rsrc), 1));
+            boolean isGood = name.equals("good.jar");
+            assertEquals(name, isGood, dl.verified.contains(rsrc));
+            assertEquals(name, isGood, rsrc.getStagingDir().exists());
+        }
+    }
+
+    @Test public void shouldRepairCopyOfLinkedResource () throws Exception
+    {
+        File local = _folder.newFile("code.jar");
+        File cached = new File(_folder.getRoot(), "cached.jar");
+        Files.write(local.toPath(), "damaged code".getBytes(UTF_8));
+        FileUtil.linkOrCopy(local, cached);
+
+        Resource rsrc = new Resource("code.jar", local.toURI().toURL(), local, Resource.NORMAL);
+        TestDownloader dl = new TestDownloader();
+        List<long[]> ranges = Collections.singletonList(new long[] { 0L, 6L });
+        Downloader.Segments segs = dl.new Segments(
+            rsrc, new Downloader.Repair(12L, ranges), false);
+        segs.channel.write(ByteBuffer.wrap("intact ".getBytes(UTF_8)), 0L);
+        segs.channel.close();
+
+        // the repair is made to a copy, leaving the file linked into the cache untouched
+        assertEquals("intact  code", read(rsrc.getLocalNew()));
+        assertEquals("damaged code", read(cached));
+    }
+
+    protected static String read (File file) throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()), UTF_8);
+    }
+
+    protected static byte[] zip (String name, String contents) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bout)) {
+            out.putNextEntry(new ZipEntry(name));
+            out.write(contents.getBytes(UTF_8));
+            out.closeEntry();
+        }
+        return bout.toByteArray();
+    }
+
+    /** Returns the offset of the central directory of {@code zip}, which has no comment. */
+    protected static int cenOffset (byte[] zip)
+    {
+        return ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN).getInt(zip.length - 22 + 16);
+    }
+
+    protected static Resource resource (String path) throws Exception
+    {
+        return new Resource(path, new URL("http://localhost/" + path), new File(path),
+                            Resource.NORMAL);
+    }
+
+    protected static class TestDownloader extends Downloader
+    {
+        public final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        public final List<Integer> percents = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public TestDownloader () {
+            super(new Connector());
+        }
+
+        @Override protected void download (Resource rsrc, URL remote) throws IOException {
+            started.add(rsrc.getPath());
+            super.download(rsrc, remote);
+        }
+
+        @Override protected void downloadProgress (int percent, long remaining) {
+            percents.add(percent);
+        }
+    }
+
+    protected static class StagingDownloader extends TestDownloader
+    {
+        public final Set<Resource> verified = Collections.synchronizedSet(new HashSet<Resource>());
+
+        public StagingDownloader (String edigest) {
+            _edigest = edigest;
+        }
+
+        @Override protected String expectedDigest (Resource rsrc) {
+            return _edigest;
+        }
+
+        @Override protected int digestVersion () {
+            return 3;
+        }
+
+        @Override protected File stagingDirFor (Resource rsrc) {
+            return rsrc.getStagingDir();
+        }
+
+        @Override protected void downloadVerified (Resource rsrc) {
+            verified.add(rsrc);
+        }
+
+        protected final String _edigest;
+    }
+
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+
+    protected static final int THREADS = 8, CHUNKS = 10000, CHUNK = 100;
+}
@@ -0,0 +1,53 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Mirrors}.
+ */
+public class MirrorsTest
+{
+    @Test public void shouldMapUnversionedURLs () throws Exception
+    {
+        Mirrors mirrors = new Mirrors(Arrays.asList(
+            "https://a.example.com/app/", "https://b.example.com/", "https://c.example.com/x/"));
+        List<URL> alts = mirrors.alternates(new URL("https://b.example.com/lib/code.jar"));
+        assertEquals(Arrays.asList(new URL("https://a.example.com/app/lib/code.jar"),
+                                   new URL("https://c.example.com/x/lib/code.jar")), alts);
+    }
+
+    @Test public void shouldMapVersionedURLs () throws Exception
+    {
+        Mirrors mirrors = new Mirrors(Arrays.asList(
+            "https://a.example.com/app/%VERSION%/", "https://b.example.com/v%VERSION%/"));
+        List<URL> alts = mirrors.alternates(new URL("https://a.example.com/app/42/code.jar"));
+        assertEquals(Arrays.asList(new URL("https://b.example.com/v42/code.jar")), alts);
+    }
+
+    @Test public void shouldIgnoreForeignURLs () throws Exception
+    {
+        Mirrors mirrors = new Mirrors(Arrays.asList(
+            "https://a.example.com/app/", "https://b.example.com/app/"));
+        assertTrue(mirrors.alternates(new URL("https://c.example.com/app/code.jar")).isEmpty());
+        assertTrue(Mirrors.NONE.alternates(new URL("https://a.example.com/app/x")).isEmpty());
+    }
+
+    @Test public void shouldOmitMirrorsNotWhitelisted () throws Exception
+    {
+        Mirrors mirrors = new Mirrors(Arrays.asList(
+            "https://a.example.com/app/", "https://evil.example.org/app/",
+            "https://b.example.com/app/"), Arrays.asList("*.example.com"));
+        List<URL> alts = mirrors.alternates(new URL("https://a.example.com/app/code.jar"));
+        assertEquals(Arrays.asList(new URL("https://b.example.com/app/code.jar")), alts);
+    }
+}
@@ -0,0 +1,75 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+import com.threerings.getdown.data.Resource;
+
+/**
+ * Tests {@link PartialDownload}.
+ */
+public class PartialDownloadTest
+{
+    @Before public void createResource () throws IOException
+    {
+        File local = new File(_folder.getRoot(), "data.bin");
+        _rsrc = new Resource("data.bin", new URL("http://localhost/data.bin"), local,
+                             Resource.NORMAL);
+        try (FileOutputStream out = new FileOutputStream(_rsrc.getLocalNew())) {
+            out.write(new byte[100]);
+        }
+    }
+
+    @Test public void shouldRoundTripState ()
+    {
+        PartialDownload pd = new PartialDownload(_rsrc);
+        pd.etag = "\"abc#123\"";
+        pd.lastModified = "Wed, 21 Oct 2015 07:28:00 GMT";
+        pd.save(42);
+
+        PartialDownload loaded = PartialDownload.load(_rsrc);
+        assertNotNull(loaded);
+        assertEquals(42, loaded.bytes);
+        assertEquals("\"abc#123\"", loaded.etag);
+        assertEquals("\"abc#123\"", loaded.validator());
+    }
+
+    @Test public void shouldPreferModTimeOverWeakETag ()
+    {
+        PartialDownload pd = new PartialDownload(_rsrc);
+        pd.etag = "W/\"abc\"";
+        pd.lastModified = "Wed, 21 Oct 2015 07:28:00 GMT";
+        assertEquals(pd.lastModified, pd.validator());
+    }
+
+    @Test public void shouldNotRecordUnvalidatedDownloads ()
+    {
+        new PartialDownload(_rsrc).save(42);
+        assertFalse(PartialDownload.infoFile(_rsrc).exists());
+        assertNull(PartialDownload.load(_rsrc));
+    }
+
+    @Test public void shouldDiscardStateBeyondFileLength ()
+    {
+        PartialDownload pd = new PartialDownload(_rsrc);
+        pd.etag = "\"abc\"";
+        pd.save(200);
+        assertNull(PartialDownload.load(_rsrc));
+        assertFalse(PartialDownload.infoFile(_rsrc).exists());
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+
+    private Resource _rsrc;
+}
@@ -0,0 +1,99 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link RateLimiter}.
+ */
+public class RateLimiterTest
+{
+    @Test public void shouldAllowInitialBurst ()
+    {
+        TestLimiter limiter = new TestLimiter(1000);
+        limiter.acquire(1000);
+        assertEquals(0L, limiter.slept);
+    }
+
+    @Test public void shouldSleepOffDebt ()
+    {
+        TestLimiter limiter = new TestLimiter(1000);
+        limiter.acquire(1000);
+        limiter.acquire(500);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), limiter.slept);
+    }
+
+    @Test public void shouldEnforceRateOverTime ()
+    {
+        TestLimiter limiter = new TestLimiter(1000);
+        // transfer 10 seconds' worth (beyond the initial burst) in small chunks
+        for (int ii = 0; ii < 1100; ii++) {
+            limiter.acquire(10);
+        }
+        assertEquals(TimeUnit.SECONDS.toNanos(10), limiter.now, TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test public void shouldCapAccruedTokens ()
+    {
+        TestLimiter limiter = new TestLimiter(1000);
+        limiter.now += TimeUnit.SECONDS.toNanos(60);
+        limiter.acquire(2000);
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.slept);
+    }
+
+    @Test public void shouldShareRateUnderContention () throws InterruptedException
+    {
+        // with the clock stopped, every byte beyond the initial burst pushes back the time at
+        // which the bucket empties, and none may be lost to a race
+        final RateLimiter limiter = new RateLimiter(1000) {
+            @Override protected long nanoTime () {
+                return 0L;
+            }
+            @Override protected void sleep (long nanos) {}
+        };
+        List<Thread> threads = new ArrayList<>();
+        for (int ii = 0; ii < 8; ii++) {
+            Thread thread = new Thread() {
+                @Override public void run () {
+                    for (int bb = 0; bb < 10000; bb++) {
+                        limiter.acquire(10);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 800,000 bytes at 1,000 bytes per second, less the one second burst
+        assertEquals(TimeUnit.SECONDS.toNanos(799), limiter._empty.get());
+    }
+
+    protected static class TestLimiter extends RateLimiter
+    {
+        public long now, slept;
+
+        public TestLimiter (long rate) {
+            super(rate);
+        }
+
+        @Override protected long nanoTime () {
+            return now;
+        }
+
+        @Override protected void sleep (long nanos) {
+            slept += nanos;
+            now += nanos;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+import com.threerings.getdown.data.Digest;
+import com.threerings.getdown.data.Resource;
+
+/**
+ * Tests {@link StagingUnpacker}.
+ */
+public class StagingUnpackerTest
+{
+    @Test public void shouldExtractAndDigestStream () throws Exception
+    {
+        File zip = _folder.newFile("data.zip");
+        Random rando = new Random(42);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("dir/"));
+            out.closeEntry();
+            for (int ii = 0; ii < 20; ii++) {
+                out.putNextEntry(new ZipEntry("dir/file" + ii));
+                byte[] data = new byte[1000 * ii];
+                rando.nextBytes(data);
+                out.write(data);
+                out.closeEntry();
+            }
+        }
+
+        File staging = new File(_folder.getRoot(), "data.zip_staged");
+        String digest = feed(staging, Files.readAllBytes(zip.toPath()));
+        assertEquals(Resource.computeDigest(3, zip, Digest.getMessageDigest(3), null), digest);
+        assertEquals(20, new File(staging, "dir").list().length);
+        assertEquals(19000, new File(staging, "dir/file19").length());
+    }
+
+    @Test public void shouldAbandonUnreadableStream () throws Exception
+    {
+        byte[] junk = new byte[3 * StagingUnpacker.PIPE_SIZE];
+        new Random(42).nextBytes(junk);
+        // the whole stream must nonetheless be consumed
+        assertNull(feed(new File(_folder.getRoot(), "junk_staged"), junk));
+    }
+
+    protected static String feed (File staging, byte[] data) throws Exception
+    {
+        StagingUnpacker unpacker = new StagingUnpacker(staging, 3);
+        for (int offset = 0; offset < data.length; offset += 4096) {
+            unpacker.write(data, offset, Math.min(4096, data.length - offset));
+        }
+        return unpacker.finish();
+    }
+
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+}
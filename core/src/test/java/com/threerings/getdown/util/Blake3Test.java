@@ -0,0 +1,86 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Blake3}.
+ */
+public class Blake3Test
+{
+    @Test public void shouldMatchReferenceVectors ()
+    {
+        // from the BLAKE3 test vectors, whose input is the byte sequence 0, 1, ..., 250, 0, 1...
+        String[][] vectors = {
+            { "0", "af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262" },
+            { "1", "2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213" },
+            { "1023", "10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11" },
+            { "1024", "42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7" },
+            { "1025", "d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444" },
+            { "2048", "e776b6028c7cd22a4d0ba182a8bf62205d2ef576467e838ed6f2529b85fba24a" },
+            { "3072", "b98cb0ff3623be03326b373de6b9095218513e64f1ee2edd2525c7ad1e5cffd2" },
+            { "31744", "62b6960e1a44bcc1eb1a611a8d6235b6b4b78f32e7abc4fb4c6cdcce94895c47" },
+            { "102400", "bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085" },
+        };
+        for (String[] vector : vectors) {
+            byte[] input = vectorInput(Integer.parseInt(vector[0]));
+            assertEquals(vector[0], vector[1], StringUtil.hexlate(new Blake3().digest(input)));
+        }
+    }
+
+    @Test public void shouldNotDependOnUpdateSizes ()
+    {
+        byte[] input = vectorInput(100000);
+        String expect = StringUtil.hexlate(new Blake3().digest(input));
+
+        Blake3 md = new Blake3();
+        Random rando = new Random(42);
+        for (int pos = 0; pos < input.length; ) {
+            int len = Math.min(input.length - pos, rando.nextInt(3000));
+            md.update(input, pos, len);
+            pos += len;
+        }
+        assertEquals(expect, StringUtil.hexlate(md.digest()));
+    }
+
+    @Test public void shouldHashFilesInParallel () throws IOException
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int size : new int[] { 0, 1025, 1024 * 1024 + 1, 5 * 1024 * 1024 + 12345 }) {
+            byte[] input = vectorInput(size);
+            File file = _folder.newFile("data" + size);
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(input);
+            }
+            try (FileInputStream in = new FileInputStream(file)) {
+                assertEquals(StringUtil.hexlate(new Blake3().digest(input)),
+                             StringUtil.hexlate(Blake3.digest(in.getChannel(), pool, null)));
+            }
+        }
+        pool.shutdown();
+    }
+
+    protected static byte[] vectorInput (int length)
+    {
+        byte[] input = new byte[length];
+        for (int ii = 0; ii < length; ii++) {
+            input[ii] = (byte)(ii % 251);
+        }
+        return input;
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
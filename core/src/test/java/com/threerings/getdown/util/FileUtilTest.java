@@ -6,13 +6,19 @@
 package com.threerings.getdown.util;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.*;
 
 /**
@@ -56,5 +62,133 @@ public class FileUtilTest
         assertEquals(3, visitor.fileCount);
     }
 
+    @Test public void shouldIdentifyAncestors ()
+    {
+        File root = _folder.getRoot();
+        assertTrue(FileUtil.isAncestor(root, root));
+        assertTrue(FileUtil.isAncestor(root, new File(root, "a/b")));
+        assertTrue(FileUtil.isAncestor(new File(root, "a"), new File(root, "a/./b/../c")));
+        assertFalse(FileUtil.isAncestor(new File(root, "a/b"), new File(root, "a")));
+        assertFalse(FileUtil.isAncestor(new File(root, "a"), new File(root, "ab")));
+    }
+
+    @Test public void shouldUnpackJarIncrementally () throws IOException
+    {
+        File target = _folder.newFolder("target");
+        File manifest = new File(_folder.getRoot(), "data.zipu");
+        File jar = createJar("data.zip", "same.txt", "same", "changed.txt", "old",
+                             "dir/removed.txt", "gone");
+        try (ZipFile zip = new ZipFile(jar)) {
+            FileUtil.unpackJar(zip, target, false, manifest);
+        }
+        assertTrue(manifest.exists());
+
+        // tamper with the unchanged entry's file in a way that the manifest can't detect, so that
+        // we can tell that it wasn't rewritten
+        File same = new File(target, "same.txt");
+        long mtime = same.lastModified();
+        Files.write(same.toPath(), "SAME".getBytes(UTF_8));
+        assertTrue(same.setLastModified(mtime));
+
+        jar = createJar("data.zip", "same.txt", "same", "changed.txt", "new contents",
+                        "added.txt", "added");
+        try (ZipFile zip = new ZipFile(jar)) {
+            FileUtil.unpackJar(zip, target, false, manifest);
+        }
+        assertEquals("SAME", read(same));
+        assertEquals("new contents", read(new File(target, "changed.txt")));
+        assertEquals("added", read(new File(target, "added.txt")));
+        assertFalse(new File(target, "dir/removed.txt").exists());
+
+        // without a manifest, everything is rewritten
+        try (ZipFile zip = new ZipFile(jar)) {
+            FileUtil.unpackJar(zip, target, false);
+        }
+        assertEquals("same", read(same));
+    }
+
+    @Test public void shouldCleanWhenUnpackManifestIsCorrupt () throws IOException
+    {
+        File target = _folder.newFolder("target");
+        File manifest = new File(_folder.getRoot(), "data.zipu");
+        File jar = createJar("data.zip", "dir/", "", "dir/kept.txt", "kept",
+                             "dir/removed.txt", "gone");
+        try (ZipFile zip = new ZipFile(jar)) {
+            FileUtil.unpackJar(zip, target, true, manifest);
+        }
+
+        // a manifest we can't read can't tell us what to delete, so the directories are cleaned
+        for (String contents : new String[] { "garbage\n",
+                                              "# getdown unpack manifest 1\nx\ty\tz\tdir/\n" }) {
+            Files.write(manifest.toPath(), contents.getBytes(UTF_8));
+            Files.write(new File(target, "dir/removed.txt").toPath(), "gone".getBytes(UTF_8));
+            jar = createJar("data.zip", "dir/", "", "dir/kept.txt", "kept");
+            try (ZipFile zip = new ZipFile(jar)) {
+                FileUtil.unpackJar(zip, target, true, manifest);
+            }
+            assertFalse(new File(target, "dir/removed.txt").exists());
+            assertEquals("kept", read(new File(target, "dir/kept.txt")));
+        }
+    }
+
+    @Test public void shouldOnlyCommitStagedFilesThatMatchJar () throws IOException
+    {
+        File jar = createJar("data.zip", "dir/", "", "dir/a.txt", "good");
+        File staging = _folder.newFolder("data.zip_staged");
+        new File(staging, "dir").mkdir();
+        File target = _folder.newFolder("target");
+
+        // a staged file of the right size but the wrong contents is not committed
+        Files.write(new File(staging, "dir/a.txt").toPath(), "evil".getBytes(UTF_8));
+        try (ZipFile zip = new ZipFile(jar)) {
+            assertFalse(FileUtil.commitStagedJar(zip, staging, target, false, null));
+        }
+        assertFalse(new File(target, "dir/a.txt").exists());
+
+        Files.write(new File(staging, "dir/a.txt").toPath(), "good".getBytes(UTF_8));
+        try (ZipFile zip = new ZipFile(jar)) {
+            assertTrue(FileUtil.commitStagedJar(zip, staging, target, false, null));
+        }
+        assertEquals("good", read(new File(target, "dir/a.txt")));
+    }
+
+    @Test public void shouldLinkOrCopyFile () throws IOException
+    {
+        File source = _folder.newFile("source.jar");
+        Files.write(source.toPath(), "old contents".getBytes(UTF_8));
+        File target = new File(_folder.getRoot(), "target.jar");
+        FileUtil.LinkType type = FileUtil.linkOrCopy(source, target);
+        assertEquals("old contents", read(target));
+        if (type == FileUtil.LinkType.HARD_LINK) {
+            assertEquals(2, FileUtil.linkCount(source));
+        }
+
+        // replacing the source must not change the linked file
+        File update = _folder.newFile("source.jar_new");
+        Files.write(update.toPath(), "new contents".getBytes(UTF_8));
+        assertTrue(FileUtil.renameTo(update, source));
+        assertEquals("new contents", read(source));
+        assertEquals("old contents", read(target));
+        assertEquals(1, FileUtil.linkCount(target));
+    }
+
+    protected File createJar (String name, String... contents) throws IOException
+    {
+        File file = new File(_folder.getRoot(), name);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int ii = 0; ii < contents.length; ii += 2) {
+                out.putNextEntry(new ZipEntry(contents[ii]));
+                out.write(contents[ii+1].getBytes(UTF_8));
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    protected static String read (File file) throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()), UTF_8);
+    }
+
     @Rule public final TemporaryFolder _folder = new TemporaryFolder();
 }
@@ -8,7 +8,12 @@ package com.threerings.getdown.util;
 import org.junit.Test;
 
 import static com.threerings.getdown.util.StringUtil.couldBeValidUrl;
+import static com.threerings.getdown.util.StringUtil.hexlate;
+import static com.threerings.getdown.util.StringUtil.unhexlate;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -25,4 +30,16 @@ public class StringUtilTest
         assertFalse(couldBeValidUrl("http://www.foo.com & echo hello"));
         assertFalse(couldBeValidUrl("http://www.foo.com\""));
     }
+
+    @Test public void testUnhexlate ()
+    {
+        byte[] bytes = { 0, 1, 127, -128, -1, 42 };
+        assertArrayEquals(bytes, unhexlate(hexlate(bytes)));
+        assertArrayEquals(bytes, unhexlate(hexlate(bytes).toUpperCase()));
+        assertEquals(0, unhexlate("").length);
+
+        assertNull(unhexlate("abc"));
+        assertNull(unhexlate("zz"));
+        assertNull(unhexlate(null));
+    }
 }
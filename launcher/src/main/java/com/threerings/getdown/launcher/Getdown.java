@@ -135,6 +135,7 @@ public abstract class Getdown
             for (Resource resource : _toInstallResources) {
                 resource.install(true);
             }
+            _app.getValidationLedger().save();
             _toInstallResources.clear();
             _readyToInstall = false;
             log.info("Install completed.");
@@ -231,6 +232,10 @@ public abstract class Getdown
 
     protected void readConfig (boolean preloads) throws IOException {
         Config config = _app.init(true);
+        // if we have mirrors, pick the best one and reinitialize so that we download from it
+        if (_app.selectMirror()) {
+            config = _app.init(true);
+        }
         if (preloads) doPredownloads(_app.getResources());
         _ifc = new Application.UpdateInterface(config);
     }
@@ -541,6 +546,7 @@ public abstract class Getdown
         } catch (IOException ioe) {
             throw new IOException("m.java_unpack_failed", ioe);
         }
+        _app.getValidationLedger().save();
 
         // these only run on non-Windows platforms, so we use Unix file separators
         FileUtil.makeExecutable(new File(javaLocalDir, "bin/java"));
@@ -677,10 +683,45 @@ public abstract class Getdown
                 log.warning("Resource missing (got 404)", "rsrc", rsrc);
             }
 
+            @Override protected int downloadPriority (Resource rsrc) {
+                return _app.downloadPriority(rsrc);
+            }
+
+            @Override protected void codeReady () {
+                log.info("Launch-critical resources downloaded");
+            }
+
+            @Override protected String expectedDigest (Resource rsrc) {
+                boolean verify = _app.verifyDuringDownload() || stagingDirFor(rsrc) != null;
+                return verify ? _app.getDigest(rsrc) : null;
+            }
+
+            @Override protected File stagingDirFor (Resource rsrc) {
+                return (_app.streamingUnpack() && rsrc.shouldUnpack()) ?
+                    rsrc.getStagingDir() : null;
+            }
+
+            @Override protected int digestVersion () {
+                return _app.presentDigestVersion();
+            }
+
+            @Override protected Repair repairFor (Resource rsrc) {
+                return _app.repairFor(rsrc);
+            }
+
+            @Override protected void downloadVerified (Resource rsrc) {
+                _app.noteVerifiedDownload(rsrc);
+            }
+
             /** The last percentage at which we checked for another getdown running, or -1 for not
              * having checked at all. */
             private int _lastCheck = -1;
         };
+        dl.setAdaptive(_app.adaptiveDownloads());
+        // if we're updating in the background, don't hog the user's bandwidth
+        dl.setRateLimit(_app.downloadRateLimit(_silent || _delay > 0));
+        dl.setResume(_app.resumeDownloads());
+        dl.setSegmentation(_app.downloadSegmentThreshold(), _app.downloadSegments());
         if (!dl.download(resources, _app.maxConcurrentDownloads())) {
             // if we aborted due to detecting another getdown running, we want to report here
             throw new MultipleGetdownRunning();
@@ -800,6 +841,11 @@ public abstract class Getdown
 
             // pump the percent up to 100%
             setStatusAsync(null, 100, -1L, false);
+
+            // verify any resources that we deferred until the app was launched
+            if (_app.verifyAfterLaunch()) {
+                verifyAfterLaunch();
+            }
             exit(0);
 
         } catch (Exception e) {
@@ -807,6 +853,31 @@ public abstract class Getdown
         }
     }
 
+    /**
+     * Verifies the resources whose verification was deferred until after launch, at low priority
+     * so as not to compete with the app. If the app was launched in a separate JVM, we close our
+     * window and verify before exiting; otherwise we verify on a daemon thread, which is killed if
+     * the app exits first, in which case every resource is verified before the next launch.
+     */
+    protected void verifyAfterLaunch ()
+    {
+        Runnable verify = new Runnable() {
+            public void run () {
+                _app.verifyDeferredResources();
+            }
+        };
+        if (invokeDirect()) {
+            Thread t = new Thread(verify, "Getdown verifier");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.start();
+        } else {
+            disposeContainer();
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            verify.run();
+        }
+    }
+
     /**
      * Creates our user interface, which we avoid doing unless we actually have to update
      * something. NOTE: this happens on the next UI tick, not immediately.
@@ -31,6 +31,7 @@ import javax.swing.WindowConstants;
 import com.samskivert.swing.util.SwingUtil;
 import com.threerings.getdown.data.EnvConfig;
 import com.threerings.getdown.data.SysProps;
+import com.threerings.getdown.net.Connector;
 import com.threerings.getdown.util.LaunchUtil;
 import com.threerings.getdown.util.StringUtil;
 import static com.threerings.getdown.Log.log;
@@ -101,6 +102,11 @@ public class GetdownApp
         log.info("-- Cur dir: " + System.getProperty("user.dir"));
         log.info("---------------------------------------------");
 
+        // the JVM configures its HTTP connection pool when the first connection is made, so set up
+        // our transport (which configures the pool) before anything, proxy detection included,
+        // connects
+        Connector.transport();
+
         Getdown getdown = new Getdown(envc) {
             @Override
             protected Container createContainer () {